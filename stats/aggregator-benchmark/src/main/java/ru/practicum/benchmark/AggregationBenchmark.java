@@ -0,0 +1,156 @@
+package ru.practicum.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.practicum.engine.ShardedAggregationEngine;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CustomProperties;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Бенчмарк горячего пути агрегатора: применение действий к состоянию и пересчёт сходства затронутых пар,
+// то есть UserActionService.processUserActions без отправки в Kafka.
+//
+// Запуск (из корня проекта):
+//   mvn -pl stats/aggregator-benchmark -am package -DskipTests
+//   java -jar stats/aggregator-benchmark/target/benchmarks.jar AggregationBenchmark -prof gc
+//
+// action - одно действие за вызов: пропускная способность и распределение задержки (p0.99 в режиме SampleTime);
+// batch - пачка действий за вызов, как у пакетного слушателя Kafka.
+// Профилировщик gc выводит скорость выделения памяти (gc.alloc.rate) и байты на операцию (gc.alloc.rate.norm).
+// Новый вариант хранения состояния добавляется значением параметра layout и веткой в configure.
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class AggregationBenchmark {
+
+    // Действий, заготовленных на итерацию; при исчерпании поток повторяется с начала
+    private static final int STREAM_SIZE = 1 << 20;
+
+    @Param({"optimized", "naive"})
+    String algorithm;
+
+    // heap - полные суммы в памяти, bounded - только лучшие соседи, tiered - холодные строки в файле
+    @Param({"heap", "bounded", "tiered"})
+    String layout;
+
+    @Param({"UNIFORM", "ZIPF", "HEAVY_USERS"})
+    UserActionGenerator.Distribution distribution;
+
+    @Param("100000")
+    int users;
+
+    @Param("10000")
+    int events;
+
+    // Действий, применяемых до замеров, чтобы замер шёл на заполненном состоянии
+    @Param("500000")
+    int prefill;
+
+    @Param("1")
+    int shards;
+
+    private ShardedAggregationEngine engine;
+    private UserActionGenerator generator;
+    private Path spillDirectory;
+    private UserActionAvro[] stream;
+    private int cursor;
+
+    @State(Scope.Thread)
+    public static class Batch {
+        @Param("500")
+        int batchSize;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CustomProperties customProperties = new CustomProperties();
+        configure(customProperties.getAggregator());
+        engine = new ShardedAggregationEngine(customProperties, new SimpleMeterRegistry());
+        generator = new UserActionGenerator(distribution, users, events, 42);
+        for (int applied = 0; applied < prefill; applied += 10_000) {
+            engine.process(generator.next(Math.min(10_000, prefill - applied)));
+        }
+    }
+
+    // Свежие действия на каждую итерацию, чтобы не повторять уже применённые взаимодействия
+    @Setup(Level.Iteration)
+    public void nextStream() {
+        stream = generator.next(STREAM_SIZE).toArray(UserActionAvro[]::new);
+        cursor = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.shutdown();
+        if (spillDirectory != null) {
+            try (Stream<Path> files = Files.walk(spillDirectory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void action(Blackhole blackhole) {
+        blackhole.consume(engine.process(List.of(nextAction())));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void batch(Batch batch, Blackhole blackhole) {
+        int from = cursor;
+        int to = Math.min(from + batch.batchSize, stream.length);
+        cursor = to == stream.length ? 0 : to;
+        blackhole.consume(engine.process(Arrays.asList(stream).subList(from, to)));
+    }
+
+    private UserActionAvro nextAction() {
+        UserActionAvro action = stream[cursor];
+        cursor = cursor + 1 == stream.length ? 0 : cursor + 1;
+        return action;
+    }
+
+    private void configure(CustomProperties.Aggregator aggregator) throws IOException {
+        aggregator.setMinimumSumAlgorithm(algorithm);
+        aggregator.setShardCount(shards);
+        switch (layout) {
+            case "heap" -> { }
+            case "bounded" -> aggregator.getTopK().setEnabled(true);
+            case "tiered" -> {
+                // В памяти остаётся четверть строк, остальные вытесняются в файл
+                spillDirectory = Files.createTempDirectory("aggregator-benchmark");
+                aggregator.getTiered().setEnabled(true);
+                aggregator.getTiered().setDirectory(spillDirectory.toString());
+                aggregator.getTiered().setMaxHotUsers(Math.max(1, users / 4));
+                aggregator.getTiered().setMaxHotEvents(Math.max(1, events / 4));
+            }
+            default -> throw new IllegalArgumentException("Неизвестный вариант хранения состояния: " + layout);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ru.practicum.benchmark;
+
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.common.serialization.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.serializer.GeneralAvroSerializer;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+// Сериализация записей Avro, которые отправляют коллектор (UserActionAvro) и агрегатор (EventSimilarityAvro).
+//
+// Запуск (из корня проекта):
+//   mvn -pl stats/aggregator-benchmark -am package -DskipTests
+//   java -jar stats/aggregator-benchmark/target/benchmarks.jar AvroSerializerBenchmark -prof gc -t 4
+//
+// legacy - прежняя реализация с писателем, потоком и кодировщиком на каждую запись, cached - текущая.
+// Байты на запись показывает gc.alloc.rate.norm профилировщика gc; -t задаёт число потоков-отправителей.
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+public class AvroSerializerBenchmark {
+
+    private static final int RECORDS = 1024;
+
+    @Param({"legacy", "cached"})
+    String serializer;
+
+    @Param({"userAction", "similarity"})
+    String record;
+
+    private Serializer<SpecificRecordBase> target;
+    private SpecificRecordBase[] records;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() {
+        target = switch (serializer) {
+            case "legacy" -> new LegacyAvroSerializer();
+            case "cached" -> new GeneralAvroSerializer();
+            default -> throw new IllegalArgumentException("Неизвестный сериализатор: " + serializer);
+        };
+        UserActionGenerator generator = new UserActionGenerator(UserActionGenerator.Distribution.ZIPF, 100_000, 10_000, 42);
+        records = new SpecificRecordBase[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            UserActionAvro action = generator.next();
+            records[i] = switch (record) {
+                case "userAction" -> action;
+                case "similarity" -> EventSimilarityAvro.newBuilder()
+                        .setEventA(action.getEventId())
+                        .setEventB(action.getEventId() + 1 + i)
+                        .setScore(1.0 / (1 + i))
+                        .setTimestamp(Instant.ofEpochMilli(action.getTimestamp().toEpochMilli()))
+                        .build();
+                default -> throw new IllegalArgumentException("Неизвестный тип записи: " + record);
+            };
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] serialize(Cursor cursor) {
+        SpecificRecordBase data = records[cursor.next];
+        cursor.next = (cursor.next + 1) & (RECORDS - 1);
+        return target.serialize("benchmark", data);
+    }
+}
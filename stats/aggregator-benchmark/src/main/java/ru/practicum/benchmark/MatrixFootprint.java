@@ -0,0 +1,62 @@
+package ru.practicum.benchmark;
+
+import org.openjdk.jol.info.GraphLayout;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CustomProperties;
+import ru.practicum.state.OpenHashInteractionMatrix;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+// Память матрицы весов пользователь-событие: OpenHashInteractionMatrix против прежних вложенных
+// HashMap<Long, Map<Long, BigDecimal>> на одних и тех же действиях. Размер - полный граф объектов по JOL
+// (GraphLayout.totalSize), то есть удерживаемая структурой память, а не оценка.
+//
+// Запуск (из корня проекта):
+//   mvn -pl stats/aggregator-benchmark -am package -DskipTests
+//   java -Djdk.attach.allowAttachSelf -cp stats/aggregator-benchmark/target/benchmarks.jar \
+//       ru.practicum.benchmark.MatrixFootprint [распределение] [пользователей] [событий] [действий]
+//
+// Веса прежней реализации - новый BigDecimal на каждое действие, как в прежнем Weights.ofUserAction;
+// вес заменяется только большим, как в агрегаторе.
+public class MatrixFootprint {
+
+    public static void main(String[] args) {
+        UserActionGenerator.Distribution distribution = args.length > 0
+                ? UserActionGenerator.Distribution.valueOf(args[0]) : UserActionGenerator.Distribution.ZIPF;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int events = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        int actions = args.length > 3 ? Integer.parseInt(args[3]) : 2_000_000;
+
+        CustomProperties.Weights weights = new CustomProperties().getAggregator().getWeights();
+        UserActionGenerator generator = new UserActionGenerator(distribution, users, events, 42);
+        OpenHashInteractionMatrix matrix = new OpenHashInteractionMatrix();
+        Map<Long, Map<Long, BigDecimal>> boxed = new HashMap<>();
+        for (int i = 0; i < actions; i++) {
+            UserActionAvro action = generator.next();
+            long weight = weights.ofUserAction(action);
+            if (weight > matrix.get(action.getUserId(), action.getEventId(), 0)) {
+                matrix.put(action.getUserId(), action.getEventId(), weight);
+            }
+            BigDecimal boxedWeight = new BigDecimal(switch (action.getActionType()) {
+                case LIKE -> weights.getLike();
+                case REGISTER -> weights.getRegister();
+                default -> weights.getView();
+            });
+            boxed.computeIfAbsent(action.getUserId(), id -> new HashMap<>())
+                    .merge(action.getEventId(), boxedWeight, BigDecimal::max);
+        }
+
+        long entries = matrix.size();
+        long primitiveBytes = GraphLayout.parseInstance(matrix).totalSize();
+        long boxedBytes = GraphLayout.parseInstance(boxed).totalSize();
+        System.out.printf("Распределение %s, пользователей %d, событий %d, действий %d, записей %d%n",
+                distribution, users, events, actions, entries);
+        System.out.printf("OpenHashInteractionMatrix: %,d байт (%.1f на запись)%n",
+                primitiveBytes, (double) primitiveBytes / entries);
+        System.out.printf("HashMap<Long, Map<Long, BigDecimal>>: %,d байт (%.1f на запись)%n",
+                boxedBytes, (double) boxedBytes / entries);
+        System.out.printf("Отношение: %.1f%n", (double) boxedBytes / primitiveBytes);
+    }
+}
@@ -0,0 +1,91 @@
+package ru.practicum.benchmark;
+
+import ru.practicum.ewm.stats.avro.ActionTypeAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Синтетический поток действий пользователей для бенчмарков агрегатора.
+// Время действий растёт на миллисекунду с каждым действием, типы действий выбираются равновероятно.
+public class UserActionGenerator {
+
+    public enum Distribution {
+        // Пользователи и события выбираются равновероятно
+        UNIFORM,
+        // Популярность событий по закону Ципфа: немногие события собирают большую часть действий
+        ZIPF,
+        // Ципф по событиям плюс «тяжёлые» пользователи: малая доля пользователей совершает половину действий,
+        // из-за чего их история и число затрагиваемых пар на действие велики
+        HEAVY_USERS
+    }
+
+    private static final double ZIPF_EXPONENT = 1.0;
+    private static final double HEAVY_USER_SHARE = 0.01;     // Доля тяжёлых пользователей
+    private static final double HEAVY_ACTION_SHARE = 0.5;    // Доля действий тяжёлых пользователей
+    private static final long START_MILLIS = 1_700_000_000_000L;
+
+    private final Distribution distribution;
+    private final int users;
+    private final int events;
+    private final int heavyUsers;
+    private final double[] eventCdf;
+    private final SplittableRandom random;
+    private long sequence;
+
+    public UserActionGenerator(Distribution distribution, int users, int events, long seed) {
+        this.distribution = distribution;
+        this.users = users;
+        this.events = events;
+        this.heavyUsers = Math.max(1, (int) (users * HEAVY_USER_SHARE));
+        this.eventCdf = distribution == Distribution.UNIFORM ? null : zipfCdf(events);
+        this.random = new SplittableRandom(seed);
+    }
+
+    public UserActionAvro next() {
+        return UserActionAvro.newBuilder()
+                .setUserId(nextUser())
+                .setEventId(nextEvent())
+                .setActionType(ActionTypeAvro.values()[random.nextInt(ActionTypeAvro.values().length)])
+                .setTimestamp(Instant.ofEpochMilli(START_MILLIS + sequence++))
+                .build();
+    }
+
+    public List<UserActionAvro> next(int count) {
+        List<UserActionAvro> actions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            actions.add(next());
+        }
+        return actions;
+    }
+
+    private long nextUser() {
+        if (distribution == Distribution.HEAVY_USERS && random.nextDouble() < HEAVY_ACTION_SHARE) {
+            return 1 + random.nextInt(heavyUsers);
+        }
+        return 1 + random.nextInt(users);
+    }
+
+    private long nextEvent() {
+        if (eventCdf == null) return 1 + random.nextInt(events);
+        int index = Arrays.binarySearch(eventCdf, random.nextDouble());
+        return 1 + (index >= 0 ? index : Math.min(-index - 1, events - 1));
+    }
+
+    // Накопленные вероятности рангов 1..n, событие с меньшим идентификатором популярнее
+    private static double[] zipfCdf(int n) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int rank = 1; rank <= n; rank++) {
+            sum += 1 / Math.pow(rank, ZIPF_EXPONENT);
+            cdf[rank - 1] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+}
@@ -0,0 +1,435 @@
+package ru.practicum.engine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CustomProperties;
+import ru.practicum.state.InteractionMatrix;
+import ru.practicum.state.LongLongHashMap;
+import ru.practicum.state.LongObjectHashMap;
+import ru.practicum.state.OpenHashInteractionMatrix;
+import ru.practicum.state.TieredInteractionMatrix;
+import ru.practicum.weight.FixedPointWeight;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+// Шард агрегатора. Всё состояние шарда изменяется только потоком этого шарда;
+// чтение чужого состояния допускается лишь в фазах, где владелец его не меняет.
+@Slf4j
+class AggregationShard {
+
+    // Поля кортежа изменения события: событие, пользователь, новый вес (0 - взаимодействие вытеснено), прирост суммы
+    static final int EVENT_ID = 0;
+    static final int USER_ID = 1;
+    static final int WEIGHT = 2;
+    static final int EVENT_DELTA = 3;
+
+    // Поля кортежа изменения пары: меньшее событие, большее событие, прирост суммы минимумов
+    static final int FIRST = 0;
+    static final int SECOND = 1;
+    static final int PAIR_DELTA = 2;
+
+    // Поля кортежа оценки пары: меньшее событие, большее событие, биты оценки;
+    // для списков соседей: событие, сосед, биты оценки
+    static final int SCORE_BITS = 2;
+
+    final int index;
+    final ShardRouter router;
+    final boolean naive;
+    final SimilarityMetric metric;
+
+    // Ограниченный режим: суммы минимумов хранятся только для пар из списков соседей (лучшие K плюс кандидаты)
+    // хотя бы одного из событий, остальные при следующем изменении пересчитываются по весам событий
+    final boolean bounded;
+    final int topSize;
+    final int neighboursCapacity;
+    final double minScoreChange;
+
+    // Ограничение истории пользователя (0 - без ограничения) и метрики разветвления
+    final int maxUserHistory;
+    final DistributionSummary fanOut;
+    final Counter evictedInteractions;
+    final Counter droppedActions;
+    final Counter decayedInteractions;
+    final Counter ignoredActions;
+    final Counter scoredPairs;
+
+    // Веса взаимодействия пользователей этого шарда
+    final InteractionMatrix weightsByUser;
+
+    // Веса взаимодействия по событиям этого шарда, нужны наивному алгоритму и ограниченному режиму
+    final InteractionMatrix weightsByEvent;
+
+    // Суммарные веса событий этого шарда
+    final LongLongHashMap eventSums = new LongLongHashMap();
+
+    // Сумма eventSums этого шарда; общая сумма весов по всем шардам нужна мере LIFT
+    long eventSumTotal;
+
+    // Суммы минимальных весов пар, меньшее событие которых принадлежит этому шарду
+    final InteractionMatrix minWeightSums = new OpenHashInteractionMatrix();
+
+    // Пары этого шарда, изменённые в текущей пачке
+    final InteractionMatrix touchedPairs = new OpenHashInteractionMatrix();
+
+    // Ограниченный режим: списки соседей событий этого шарда и последние отправленные оценки пар этого шарда
+    final LongObjectHashMap<TopNeighbours> neighbours = new LongObjectHashMap<>();
+    final InteractionMatrix emittedScores = new OpenHashInteractionMatrix();
+
+    // Ограниченный режим: оценки изменённых пар шарда, предложения в списки соседей и вытеснения из них
+    final LongTupleBuffer touchedScores = new LongTupleBuffer(3);
+    final LongTupleBuffer[] neighbourOffers;
+    final LongTupleBuffer[] evictions;
+
+    // Исходящие изменения, по буферу на каждый шард-получатель
+    final LongTupleBuffer[] eventDeltas;
+    final LongTupleBuffer[] pairDeltas;
+
+    final List<SimilarityScore> scores = new ArrayList<>();
+
+    AggregationShard(int index, ShardRouter router, boolean naive, SimilarityMetric metric, CustomProperties.TopK topK,
+                     CustomProperties.FanOut fanOutProperties, CustomProperties.Tiered tiered,
+                     MeterRegistry meterRegistry) {
+        this.index = index;
+        this.router = router;
+        this.naive = naive;
+        this.metric = metric;
+        this.bounded = !naive && topK.isEnabled();
+        this.topSize = topK.getSize();
+        this.neighboursCapacity = topK.getSize() + topK.getCandidates();
+        this.minScoreChange = topK.getMinScoreChange();
+        if (tiered.isEnabled()) {
+            // Лимиты горячего уровня заданы на весь агрегатор и делятся между шардами
+            Path directory = Path.of(tiered.getDirectory());
+            this.weightsByUser = new TieredInteractionMatrix(Math.max(1, tiered.getMaxHotUsers() / router.shardCount()),
+                    directory.resolve("shard-" + index + "-users.spill"));
+            this.weightsByEvent = new TieredInteractionMatrix(Math.max(1, tiered.getMaxHotEvents() / router.shardCount()),
+                    directory.resolve("shard-" + index + "-events.spill"));
+        } else {
+            this.weightsByUser = new OpenHashInteractionMatrix();
+            this.weightsByEvent = new OpenHashInteractionMatrix();
+        }
+        this.maxUserHistory = fanOutProperties.getMaxUserHistory();
+        // Распределение разветвления у каждого шарда своё: запись идёт на каждом действии из потока шарда
+        this.fanOut = DistributionSummary.builder("aggregator.user.fanout")
+                .description("Количество пар, пересчитываемых на одно действие пользователя")
+                .tag("shard", String.valueOf(index))
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .register(meterRegistry);
+        this.evictedInteractions = Counter.builder("aggregator.user.history.evicted")
+                .description("Взаимодействия, вытесненные из истории пользователей при превышении ограничения")
+                .register(meterRegistry);
+        this.droppedActions = Counter.builder("aggregator.user.actions.dropped")
+                .description("Действия, не попавшие в заполненную историю пользователя из-за меньшего веса")
+                .register(meterRegistry);
+        this.decayedInteractions = Counter.builder("aggregator.decay.evicted")
+                .description("Взаимодействия, вытесненные из-за затухания веса ниже порога")
+                .register(meterRegistry);
+        this.ignoredActions = Counter.builder("aggregator.user.actions.ignored")
+                .description("Действия, вес которых не больше уже учтённого веса взаимодействия")
+                .register(meterRegistry);
+        this.scoredPairs = Counter.builder("aggregator.pairs.scored")
+                .description("Пары событий, сходство которых пересчитано")
+                .register(meterRegistry);
+        this.eventDeltas = new LongTupleBuffer[router.shardCount()];
+        this.pairDeltas = new LongTupleBuffer[router.shardCount()];
+        this.neighbourOffers = new LongTupleBuffer[router.shardCount()];
+        this.evictions = new LongTupleBuffer[router.shardCount()];
+        for (int i = 0; i < router.shardCount(); i++) {
+            eventDeltas[i] = new LongTupleBuffer(4);
+            pairDeltas[i] = new LongTupleBuffer(3);
+            neighbourOffers[i] = new LongTupleBuffer(3);
+            evictions[i] = new LongTupleBuffer(3);
+        }
+    }
+
+    // Нужны ли веса по событиям для пересчёта сумм минимумов
+    boolean tracksEventWeights() {
+        return naive || bounded;
+    }
+
+    // Фаза 1: обновление весов пользователей шарда и расчёт приростов сумм по событиям и парам
+    void applyUserActions(List<UserActionAvro> actions, CustomProperties.Weights weights, WeightDecay decay) {
+        clearDeltas();
+        int ignored = 0;
+        for (UserActionAvro action : actions) {
+            long userId = action.getUserId();
+            if (router.shardOfUser(userId) != index) continue;
+            long eventId = action.getEventId();
+            long actionWeight = weights.ofUserAction(action);
+            long newWeight = decay == null ? actionWeight : decay.forward(actionWeight, action.getTimestamp().toEpochMilli());
+            long storedWeight = weightsByUser.get(userId, eventId, -1L);
+            if (storedWeight >= 0 && newWeight <= storedWeight) {
+                ignored++;
+                continue;
+            }
+            long oldWeight = Math.max(storedWeight, 0L);
+            if (storedWeight < 0 && maxUserHistory > 0 && weightsByUser.rowSize(userId) >= maxUserHistory
+                    && !evictLightestInteraction(userId, newWeight)) {
+                droppedActions.increment();
+                continue;
+            }
+            weightsByUser.put(userId, eventId, newWeight);
+            eventDeltas[router.shardOfEvent(eventId)].add(eventId, userId, newWeight, newWeight - oldWeight);
+            weightsByUser.forEachInRow(userId, (anotherEventId, anotherWeight) -> {
+                if (anotherEventId != eventId) {
+                    long first = Math.min(eventId, anotherEventId);
+                    long second = Math.max(eventId, anotherEventId);
+                    long delta = Math.min(newWeight, anotherWeight) - Math.min(oldWeight, anotherWeight);
+                    pairDeltas[router.shardOfEvent(first)].add(first, second, delta);
+                }
+            });
+            fanOut.record(weightsByUser.rowSize(userId) - 1);
+        }
+        // Счётчик увеличивается раз в пачку, а не на каждое пропущенное действие
+        if (ignored > 0) ignoredActions.increment(ignored);
+    }
+
+    // В заполненной истории пользователя остаются самые весомые взаимодействия, при равных весах - более новые.
+    // Вытесненное взаимодействие полностью вычитается из сумм события и пар, как если бы его не было.
+    // Возвращает false, если новое взаимодействие легче всех имеющихся и само не попадает в историю
+    private boolean evictLightestInteraction(long userId, long newWeight) {
+        long[] lightest = {0L, Long.MAX_VALUE};
+        weightsByUser.forEachInRow(userId, (eventId, weight) -> {
+            if (weight < lightest[1]) {
+                lightest[0] = eventId;
+                lightest[1] = weight;
+            }
+        });
+        if (newWeight < lightest[1]) return false;
+        evictInteraction(userId, lightest[0], lightest[1]);
+        evictedInteractions.increment();
+        log.debug("Из истории пользователя {} вытеснено событие {} с весом {}", userId, lightest[0], lightest[1]);
+        return true;
+    }
+
+    // Фаза 1 при очистке: вытеснение взаимодействий, хранимый вес которых ниже порога
+    void evictDecayed(long threshold) {
+        clearDeltas();
+        LongTupleBuffer decayed = new LongTupleBuffer(3);
+        weightsByUser.forEach((userId, eventId, weight) -> {
+            if (weight < threshold) decayed.add(userId, eventId, weight);
+        });
+        for (int i = 0; i < decayed.size(); i++) {
+            evictInteraction(decayed.get(i, 0), decayed.get(i, 1), decayed.get(i, 2));
+        }
+        decayedInteractions.increment(decayed.size());
+    }
+
+    // Этап приростов: удаление весов пользователей без приростов - суммы событий и пар хранит этап оценки
+    int dropUsers(LongPredicate dropped) {
+        LongTupleBuffer interactions = new LongTupleBuffer(3);
+        weightsByUser.forEach((userId, eventId, weight) -> {
+            if (dropped.test(userId)) interactions.add(userId, eventId, weight);
+        });
+        for (int i = 0; i < interactions.size(); i++) {
+            weightsByUser.remove(interactions.get(i, 0), interactions.get(i, 1));
+        }
+        return interactions.size();
+    }
+
+    // Удаление взаимодействия пользователя с вычитанием его вклада из сумм события и пар
+    private void evictInteraction(long userId, long evictedEventId, long evictedWeight) {
+        weightsByUser.remove(userId, evictedEventId);
+        eventDeltas[router.shardOfEvent(evictedEventId)].add(evictedEventId, userId, 0L, -evictedWeight);
+        weightsByUser.forEachInRow(userId, (anotherEventId, anotherWeight) -> {
+            long first = Math.min(evictedEventId, anotherEventId);
+            long second = Math.max(evictedEventId, anotherEventId);
+            pairDeltas[router.shardOfEvent(first)].add(first, second, -Math.min(evictedWeight, anotherWeight));
+        });
+    }
+
+    void clearDeltas() {
+        for (int i = 0; i < eventDeltas.length; i++) {
+            eventDeltas[i].clear();
+            pairDeltas[i].clear();
+        }
+    }
+
+    // Фаза 2: применение приростов, адресованных этому шарду
+    void applyDeltas(AggregationShard[] shards) {
+        for (AggregationShard source : shards) {
+            LongTupleBuffer events = source.eventDeltas[index];
+            for (int i = 0; i < events.size(); i++) {
+                long eventId = events.get(i, EVENT_ID);
+                addEventSum(eventId, events.get(i, EVENT_DELTA));
+                if (tracksEventWeights()) {
+                    long weight = events.get(i, WEIGHT);
+                    if (weight == 0) {
+                        weightsByEvent.remove(eventId, events.get(i, USER_ID));
+                    } else {
+                        weightsByEvent.put(eventId, events.get(i, USER_ID), weight);
+                    }
+                }
+            }
+            LongTupleBuffer pairs = source.pairDeltas[index];
+            for (int i = 0; i < pairs.size(); i++) {
+                long first = pairs.get(i, FIRST);
+                long second = pairs.get(i, SECOND);
+                // Сумма вытесненной пары не хранится и будет пересчитана в фазе 3
+                if (!naive && (!bounded || minWeightSums.contains(first, second))
+                        && minWeightSums.add(first, second, pairs.get(i, PAIR_DELTA)) == 0) {
+                    minWeightSums.remove(first, second);
+                }
+                touchedPairs.put(first, second, 1L);
+            }
+        }
+    }
+
+    // Фаза 3: оценка сходства изменённых пар. Суммы событий других шардов в этой фазе только читаются
+    void scoreTouchedPairs(AggregationShard[] shards) {
+        scores.clear();
+        touchedScores.clear();
+        for (int i = 0; i < neighbourOffers.length; i++) {
+            neighbourOffers[i].clear();
+        }
+        scoredPairs.increment(touchedPairs.size());
+        touchedPairs.forEach((first, second, ignored) -> {
+            long minWeightSum;
+            if (naive || (bounded && !minWeightSums.contains(first, second))) {
+                minWeightSum = recountMinWeightSum(shards, first, second);
+                if (minWeightSum > 0) {
+                    minWeightSums.put(first, second, minWeightSum);
+                } else {
+                    minWeightSums.remove(first, second);
+                }
+            } else {
+                minWeightSum = minWeightSums.get(first, second, 0L);
+            }
+            double score = score(shards, first, second, minWeightSum);
+            if (bounded) {
+                long bits = Double.doubleToRawLongBits(score);
+                touchedScores.add(first, second, bits);
+                neighbourOffers[router.shardOfEvent(first)].add(first, second, bits);
+                neighbourOffers[router.shardOfEvent(second)].add(second, first, bits);
+            } else {
+                scores.add(new SimilarityScore(first, second, score));
+            }
+        });
+        touchedPairs.clear();
+    }
+
+    // Фаза 4 (ограниченный режим): обновление списков соседей событий этого шарда
+    void updateNeighbours(AggregationShard[] shards) {
+        for (int i = 0; i < evictions.length; i++) {
+            evictions[i].clear();
+        }
+        for (AggregationShard source : shards) {
+            LongTupleBuffer offers = source.neighbourOffers[index];
+            for (int i = 0; i < offers.size(); i++) {
+                long eventId = offers.get(i, FIRST);
+                TopNeighbours list = neighbours.computeIfAbsent(eventId, id -> new TopNeighbours(neighboursCapacity));
+                if (list.offer(offers.get(i, SECOND), Double.longBitsToDouble(offers.get(i, SCORE_BITS)))) {
+                    long evicted = list.evicted();
+                    evictions[router.shardOfPair(eventId, evicted)].add(Math.min(eventId, evicted), Math.max(eventId, evicted), 0L);
+                }
+            }
+        }
+    }
+
+    // Фаза 5 (ограниченный режим): отправка оценок пар, которые входят в лучшие K хотя бы одного события
+    // и заметно изменились, либо покинули лучшие K после отправки; удаление сумм пар, выпавших из всех списков.
+    // Списки соседей в этой фазе только читаются
+    void emitBoundedScores(AggregationShard[] shards) {
+        for (int i = 0; i < touchedScores.size(); i++) {
+            long first = touchedScores.get(i, FIRST);
+            long second = touchedScores.get(i, SECOND);
+            double score = Double.longBitsToDouble(touchedScores.get(i, SCORE_BITS));
+            boolean top = isTop(shards, first, second);
+            boolean emitted = emittedScores.contains(first, second);
+            boolean changed = !emitted
+                    || Math.abs(score - Double.longBitsToDouble(emittedScores.get(first, second, 0L))) >= minScoreChange;
+            if ((top || emitted) && changed) {
+                scores.add(new SimilarityScore(first, second, score));
+                if (top) {
+                    emittedScores.put(first, second, Double.doubleToRawLongBits(score));
+                } else {
+                    emittedScores.remove(first, second);
+                }
+            }
+            if (!isRetained(shards, first, second)) forget(first, second);
+        }
+        for (AggregationShard source : shards) {
+            LongTupleBuffer evicted = source.evictions[index];
+            for (int i = 0; i < evicted.size(); i++) {
+                long first = evicted.get(i, FIRST);
+                long second = evicted.get(i, SECOND);
+                if (!isRetained(shards, first, second)) forget(first, second);
+            }
+        }
+    }
+
+    // Сумма минимальных весов пары этого шарда; для непосчитанной пары выполняется пересчёт без сохранения
+    long minWeightSum(AggregationShard[] shards, long first, long second) {
+        if (naive || !bounded || minWeightSums.contains(first, second)) return minWeightSums.get(first, second, 0L);
+        return recountMinWeightSum(shards, first, second);
+    }
+
+    double score(AggregationShard[] shards, long first, long second, long minWeightSum) {
+        if (minWeightSum == 0) return 0.0;
+        long totalSum = 0;
+        for (AggregationShard shard : shards) {
+            totalSum += shard.eventSumTotal;
+        }
+        return metric.score(FixedPointWeight.toDouble(minWeightSum),
+                FixedPointWeight.toDouble(shards[router.shardOfEvent(first)].eventSums.getOrDefault(first, 0L)),
+                FixedPointWeight.toDouble(shards[router.shardOfEvent(second)].eventSums.getOrDefault(second, 0L)),
+                FixedPointWeight.toDouble(totalSum));
+    }
+
+    // Изменение суммы события вместе с общей суммой весов событий шарда
+    void addEventSum(long eventId, long delta) {
+        eventSumTotal += delta;
+        if (eventSums.addTo(eventId, delta) == 0) eventSums.remove(eventId);
+    }
+
+    boolean isRetained(AggregationShard[] shards, long first, long second) {
+        TopNeighbours firstList = shards[router.shardOfEvent(first)].neighbours.get(first);
+        TopNeighbours secondList = shards[router.shardOfEvent(second)].neighbours.get(second);
+        return (firstList != null && firstList.contains(second)) || (secondList != null && secondList.contains(first));
+    }
+
+    void forget(long first, long second) {
+        minWeightSums.remove(first, second);
+        emittedScores.remove(first, second);
+    }
+
+    private boolean isTop(AggregationShard[] shards, long first, long second) {
+        TopNeighbours firstList = shards[router.shardOfEvent(first)].neighbours.get(first);
+        TopNeighbours secondList = shards[router.shardOfEvent(second)].neighbours.get(second);
+        return (firstList != null && firstList.isTop(second, topSize)) || (secondList != null && secondList.isTop(first, topSize));
+    }
+
+    void clear() {
+        weightsByUser.clear();
+        weightsByEvent.clear();
+        eventSums.clear();
+        eventSumTotal = 0;
+        minWeightSums.clear();
+        touchedPairs.clear();
+        neighbours.clear();
+        emittedScores.clear();
+    }
+
+    // Наивный пересчёт: сумма минимумов по общим пользователям, обход меньшей из двух строк
+    private long recountMinWeightSum(AggregationShard[] shards, long first, long second) {
+        InteractionMatrix firstWeights = shards[router.shardOfEvent(first)].weightsByEvent;
+        InteractionMatrix secondWeights = shards[router.shardOfEvent(second)].weightsByEvent;
+        boolean firstSmaller = firstWeights.rowSize(first) <= secondWeights.rowSize(second);
+        InteractionMatrix smaller = firstSmaller ? firstWeights : secondWeights;
+        InteractionMatrix larger = firstSmaller ? secondWeights : firstWeights;
+        long smallerRow = firstSmaller ? first : second;
+        long largerRow = firstSmaller ? second : first;
+        long[] sum = {0L};
+        smaller.forEachInRow(smallerRow, (userId, weight) -> {
+            long otherWeight = larger.get(largerRow, userId, 0L);
+            if (otherWeight > 0) sum[0] += Math.min(weight, otherWeight);
+        });
+        return sum[0];
+    }
+}
@@ -0,0 +1,12 @@
+package ru.practicum.engine;
+
+// Роль экземпляра агрегатора. В двухэтапном режиме этап приростов партиционирован по пользователям и хранит
+// только их веса, этап оценки партиционирован по парам событий и хранит суммы событий и своих пар
+public enum AggregationStage {
+    // Один экземпляр: действия пользователей на входе, оценки сходства на выходе
+    SINGLE,
+    // Этап 1: действия пользователей на входе, приросты сумм событий и пар на выходе
+    DELTAS,
+    // Этап 2: приросты на входе, оценки сходства на выходе
+    SCORING
+}
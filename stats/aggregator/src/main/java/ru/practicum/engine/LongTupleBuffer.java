@@ -0,0 +1,50 @@
+package ru.practicum.engine;
+
+import java.util.Arrays;
+
+// Растущий буфер кортежей из long фиксированной ширины для передачи изменений между шардами без упаковки
+class LongTupleBuffer {
+
+    private final int width;
+    private long[] data;
+    private int size;
+
+    LongTupleBuffer(int width) {
+        this.width = width;
+        this.data = new long[width * 16];
+    }
+
+    void add(long a, long b, long c) {
+        int offset = reserve();
+        data[offset] = a;
+        data[offset + 1] = b;
+        data[offset + 2] = c;
+    }
+
+    void add(long a, long b, long c, long d) {
+        int offset = reserve();
+        data[offset] = a;
+        data[offset + 1] = b;
+        data[offset + 2] = c;
+        data[offset + 3] = d;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long get(int index, int field) {
+        return data[index * width + field];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    private int reserve() {
+        int offset = size * width;
+        if (offset + width > data.length) data = Arrays.copyOf(data, data.length << 1);
+        size++;
+        return offset;
+    }
+}
@@ -0,0 +1,238 @@
+package ru.practicum.engine;
+
+import ru.practicum.state.LongLongHashMap;
+import ru.practicum.state.LongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Индекс соседей для чтения из других потоков. Для каждого события хранится неизменяемый список соседей
+// по убыванию сходства. Пишет только агрегатор после оценки пачки: списки изменённых событий заменяются
+// целиком (копирование при записи), поэтому читатель без блокировок видит либо старый, либо новый список.
+// Индекс повторяет отправляемые оценки: пара попадает в списки обоих событий при каждой отправке её оценки.
+// Публикуются только лучшие capacity соседей, но агрегатор хранит последние оценки всех пар события:
+// если сосед выпал из опубликованного списка, а оценки оставшихся потом упали, список пересобирается из них,
+// поэтому опубликованный список всегда точные лучшие соседи по последним отправленным оценкам.
+// Память под оценки - по записи на каждую сторону каждой пары с ненулевой оценкой.
+// Слияние идёт по примитивным массивам во временных буферах индекса, новые массивы создаются только
+// для публикуемых списков
+class NeighbourIndex {
+
+    private final int capacity;
+    private final Map<Long, Neighbours> byEvent = new ConcurrentHashMap<>();
+
+    // Последние оценки всех пар события (сосед -> биты оценки); только для агрегатора
+    private final LongObjectHashMap<LongLongHashMap> scored = new LongObjectHashMap<>();
+
+    // Временные буферы агрегатора: изменения пачки (событие, сосед, биты оценки) и слияние одного списка
+    private final LongTupleBuffer changes = new LongTupleBuffer(3);
+    private int[] changeOrder = new int[16];
+    private long[] changedEvents = new long[16];
+    private double[] changedScores = new double[16];
+    private long[] mergedEvents = new long[16];
+    private double[] mergedScores = new double[16];
+    private int[] mergedOrder = new int[16];
+    private final IndexOrder byChange = this::compareChanges;
+    private final IndexOrder byScore = this::compareMerged;
+    private int collected;
+    private final LongLongHashMap.LongLongConsumer collector = this::collect;
+
+    NeighbourIndex(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Применяет оценки пачки; вызывается только агрегатором
+    void update(List<SimilarityScore> scores) {
+        if (scores.isEmpty()) return;
+        changes.clear();
+        for (SimilarityScore score : scores) {
+            long bits = Double.doubleToRawLongBits(score.score());
+            changes.add(score.eventA(), score.eventB(), bits);
+            changes.add(score.eventB(), score.eventA(), bits);
+        }
+        int count = changes.size();
+        changeOrder = identity(changeOrder, count);
+        sort(changeOrder, count, byChange);
+        ensureChangedCapacity(count);
+        int from = 0;
+        while (from < count) {
+            long eventId = changes.get(changeOrder[from], 0);
+            int to = from;
+            int changed = 0;
+            // Изменения события упорядочены по соседу и порядку в пачке: из повторов берётся последняя оценка
+            while (to < count && changes.get(changeOrder[to], 0) == eventId) {
+                int change = changeOrder[to++];
+                long neighbour = changes.get(change, 1);
+                if (changed > 0 && changedEvents[changed - 1] == neighbour) changed--;
+                changedEvents[changed] = neighbour;
+                changedScores[changed++] = Double.longBitsToDouble(changes.get(change, 2));
+            }
+            Neighbours merged = merge(eventId, byEvent.get(eventId), changed);
+            if (merged.size() == 0) {
+                byEvent.remove(eventId);
+            } else {
+                byEvent.put(eventId, merged);
+            }
+            from = to;
+        }
+    }
+
+    // Лучшие не более limit соседей события; безопасно вызывается из любых потоков
+    List<SimilarityScore> top(long eventId, int limit) {
+        Neighbours neighbours = byEvent.get(eventId);
+        if (neighbours == null) return List.of();
+        int size = Math.min(limit, neighbours.size());
+        List<SimilarityScore> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new SimilarityScore(eventId, neighbours.events[i], neighbours.scores[i]));
+        }
+        return result;
+    }
+
+    void clear() {
+        byEvent.clear();
+        scored.clear();
+    }
+
+    int size() {
+        return byEvent.size();
+    }
+
+    // Новый список: прежние соседи без изменённых плюс изменённые с новыми оценками, без нулевых оценок,
+    // по убыванию сходства (при равенстве выше сосед с меньшим идентификатором), не длиннее capacity.
+    // Соседи вне прежнего списка не лучше его последнего, поэтому слияния достаточно, если новый список
+    // заполнен и его последний не хуже прежнего последнего; иначе список собирается из всех оценок события.
+    // Изменённые соседи лежат в changedEvents по возрастанию
+    private Neighbours merge(long eventId, Neighbours current, int changed) {
+        LongLongHashMap all = scored.get(eventId);
+        if (all == null) {
+            all = new LongLongHashMap();
+            scored.put(eventId, all);
+        }
+        for (int i = 0; i < changed; i++) {
+            if (changedScores[i] > 0) {
+                all.put(changedEvents[i], Double.doubleToRawLongBits(changedScores[i]));
+            } else {
+                all.remove(changedEvents[i]);
+            }
+        }
+        if (all.isEmpty()) scored.remove(eventId);
+        int currentSize = current == null ? 0 : current.size();
+        ensureMergedCapacity(Math.max(currentSize + changed, all.size()));
+        int size = 0;
+        for (int i = 0; i < currentSize; i++) {
+            if (Arrays.binarySearch(changedEvents, 0, changed, current.events[i]) < 0) {
+                mergedEvents[size] = current.events[i];
+                mergedScores[size++] = current.scores[i];
+            }
+        }
+        for (int i = 0; i < changed; i++) {
+            if (changedScores[i] > 0) {
+                mergedEvents[size] = changedEvents[i];
+                mergedScores[size++] = changedScores[i];
+            }
+        }
+        mergedOrder = identity(mergedOrder, size);
+        sort(mergedOrder, size, byScore);
+        if (all.size() > size && (size < capacity || currentSize == 0
+                || better(current.events[currentSize - 1], current.scores[currentSize - 1],
+                mergedEvents[mergedOrder[capacity - 1]], mergedScores[mergedOrder[capacity - 1]]))) {
+            collected = 0;
+            all.forEach(collector);
+            size = collected;
+            mergedOrder = identity(mergedOrder, size);
+            sort(mergedOrder, size, byScore);
+        }
+        int resultSize = Math.min(size, capacity);
+        long[] resultEvents = new long[resultSize];
+        double[] resultScores = new double[resultSize];
+        for (int i = 0; i < resultSize; i++) {
+            resultEvents[i] = mergedEvents[mergedOrder[i]];
+            resultScores[i] = mergedScores[mergedOrder[i]];
+        }
+        return new Neighbours(resultEvents, resultScores);
+    }
+
+    private void collect(long neighbour, long bits) {
+        mergedEvents[collected] = neighbour;
+        mergedScores[collected++] = Double.longBitsToDouble(bits);
+    }
+
+    private void ensureMergedCapacity(int count) {
+        if (mergedEvents.length >= count) return;
+        int length = Math.max(count, mergedEvents.length << 1);
+        mergedEvents = new long[length];
+        mergedScores = new double[length];
+    }
+
+    private void ensureChangedCapacity(int count) {
+        if (changedEvents.length >= count) return;
+        int length = Math.max(count, changedEvents.length << 1);
+        changedEvents = new long[length];
+        changedScores = new double[length];
+    }
+
+    private int compareChanges(int first, int second) {
+        int order = Long.compare(changes.get(first, 0), changes.get(second, 0));
+        if (order == 0) order = Long.compare(changes.get(first, 1), changes.get(second, 1));
+        return order != 0 ? order : Integer.compare(first, second);
+    }
+
+    private int compareMerged(int first, int second) {
+        int order = Double.compare(mergedScores[second], mergedScores[first]);
+        return order != 0 ? order : Long.compare(mergedEvents[first], mergedEvents[second]);
+    }
+
+    private static boolean better(long neighbourA, double scoreA, long neighbourB, double scoreB) {
+        return scoreA > scoreB || (scoreA == scoreB && neighbourA < neighbourB);
+    }
+
+    // Массив 0..size-1, при нехватке места больший
+    private static int[] identity(int[] order, int size) {
+        if (order.length < size) order = new int[Math.max(size, order.length << 1)];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    // Пирамидальная сортировка первых size индексов без упаковки; порядок полный, поэтому устойчивость не нужна
+    private static void sort(int[] order, int size, IndexOrder comparator) {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(order, i, size, comparator);
+        }
+        for (int end = size - 1; end > 0; end--) {
+            int top = order[0];
+            order[0] = order[end];
+            order[end] = top;
+            siftDown(order, 0, end, comparator);
+        }
+    }
+
+    private static void siftDown(int[] order, int index, int size, IndexOrder comparator) {
+        int value = order[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) break;
+            if (child + 1 < size && comparator.compare(order[child + 1], order[child]) > 0) child++;
+            if (comparator.compare(order[child], value) <= 0) break;
+            order[index] = order[child];
+            index = child;
+        }
+        order[index] = value;
+    }
+
+    private interface IndexOrder {
+        int compare(int first, int second);
+    }
+
+    // Массивы не изменяются после публикации
+    private record Neighbours(long[] events, double[] scores) {
+        int size() {
+            return events.length;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ru.practicum.engine;
+
+// Распределение пользователей, событий и пар событий по шардам.
+// Пара принадлежит шарду события с меньшим идентификатором.
+public class ShardRouter {
+
+    private final int shardCount;
+
+    public ShardRouter(int shardCount) {
+        if (shardCount < 1) throw new IllegalArgumentException("Количество шардов должно быть положительным: " + shardCount);
+        this.shardCount = shardCount;
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    public int shardOfUser(long userId) {
+        return Math.floorMod(userId, shardCount);
+    }
+
+    public int shardOfEvent(long eventId) {
+        return Math.floorMod(eventId, shardCount);
+    }
+
+    public int shardOfPair(long eventA, long eventB) {
+        return shardOfEvent(Math.min(eventA, eventB));
+    }
+}
@@ -0,0 +1,489 @@
+package ru.practicum.engine;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import ru.practicum.ewm.stats.avro.AggregationDeltasAvro;
+import ru.practicum.ewm.stats.avro.EventSumDeltaAvro;
+import ru.practicum.ewm.stats.avro.PairSumDeltaAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CustomProperties;
+import ru.practicum.state.InteractionMatrix;
+import ru.practicum.state.LongLongHashMap;
+import ru.practicum.state.OpenHashInteractionMatrix;
+import ru.practicum.state.TieredInteractionMatrix;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.ToLongFunction;
+
+// Шардированный агрегатор взаимодействий. Каждый шард принадлежит одному потоку (единственный писатель),
+// пачка действий обрабатывается в три фазы с барьером между ними:
+// 1) шарды пользователей обновляют веса и считают приросты сумм событий и пар;
+// 2) шарды-владельцы применяют приросты (пара принадлежит шарду меньшего события);
+// 3) шарды-владельцы пар оценивают сходство изменённых пар, результаты собираются со всех шардов.
+// В ограниченном режиме (top-K) добавляются ещё две фазы:
+// 4) шарды событий обновляют списки соседей своих событий;
+// 5) шарды-владельцы пар решают, какие оценки отправить, и забывают суммы пар, выпавших из всех списков.
+// При одном шарде фазы выполняются в вызывающем потоке.
+// Если включён индекс соседей, после оценки он обновляется отправляемыми оценками и читается без блокировки.
+// В двухэтапном режиме фаза 1 выполняется экземплярами этапа приростов (computeDeltas), а фазы 2-3 -
+// экземплярами этапа оценки (applyDeltas); приросты между ними передаются через Kafka.
+@Slf4j
+@Component
+public class ShardedAggregationEngine {
+
+    private final CustomProperties.Weights weights;
+    private final ShardRouter router;
+    private final AggregationShard[] shards;
+    private final boolean bounded;
+    private final WeightDecay decay;
+    private final NeighbourIndex lookup;
+    private final ExecutorService[] executors;
+    private final Timer batchTimer;
+    private final DistributionSummary batchSize;
+
+    public ShardedAggregationEngine(CustomProperties customProperties) {
+        this(customProperties, new SimpleMeterRegistry());
+    }
+
+    @Autowired
+    public ShardedAggregationEngine(CustomProperties customProperties, MeterRegistry meterRegistry) {
+        CustomProperties.Aggregator aggregator = customProperties.getAggregator();
+        this.weights = aggregator.getWeights();
+        this.router = new ShardRouter(aggregator.getShardCount());
+        boolean naive = "naive".equalsIgnoreCase(aggregator.getMinimumSumAlgorithm());
+        SimilarityMetric metric = SimilarityMetric.of(aggregator.getSimilarityMetric());
+        this.shards = new AggregationShard[router.shardCount()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new AggregationShard(i, router, naive, metric, aggregator.getTopK(), aggregator.getFanOut(),
+                    aggregator.getTiered(), meterRegistry);
+        }
+        this.bounded = shards[0].bounded;
+        this.decay = aggregator.getDecay().isEnabled() ? new WeightDecay(aggregator.getDecay()) : null;
+        this.lookup = aggregator.getLookup().isEnabled() ? new NeighbourIndex(aggregator.getLookup().getSize()) : null;
+        // Этапу оценки недоступны веса пользователей, поэтому наивный пересчёт, списки соседей top-K
+        // и пересчёт сумм при сдвиге эпохи затухания в двухэтапном режиме невозможны
+        if (aggregator.getTopology().getStage() != AggregationStage.SINGLE && (naive || bounded || decay != null)) {
+            throw new IllegalStateException("Двухэтапный режим поддерживает только алгоритм optimized без top-K и затухания");
+        }
+        this.batchTimer = Timer.builder("aggregator.batch.duration")
+                .description("Обработка пачки действий: применение весов и оценка изменённых пар")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("aggregator.batch.size")
+                .description("Количество действий в обработанной пачке")
+                .register(meterRegistry);
+        registerStateSizeMetric(meterRegistry, "weightsByUser", shard -> shard.weightsByUser.size());
+        registerStateSizeMetric(meterRegistry, "weightsByEvent", shard -> shard.weightsByEvent.size());
+        registerStateSizeMetric(meterRegistry, "eventSums", shard -> shard.eventSums.size());
+        registerStateSizeMetric(meterRegistry, "minWeightSums", shard -> shard.minWeightSums.size());
+        if (aggregator.getTiered().isEnabled()) {
+            registerTierMetrics(meterRegistry, "users", shard -> shard.weightsByUser);
+            registerTierMetrics(meterRegistry, "events", shard -> shard.weightsByEvent);
+        }
+        if (shards.length > 1) {
+            this.executors = new ExecutorService[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                String threadName = "aggregator-shard-" + i;
+                executors[i] = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, threadName));
+            }
+        } else {
+            this.executors = null;
+        }
+        log.info("Агрегатор запущен: шардов {}, алгоритм {}, мера сходства {}, ограниченный режим {}, индекс соседей {}",
+                shards.length, naive ? "naive" : "optimized", metric,
+                bounded ? "top-" + aggregator.getTopK().getSize() : "выключен",
+                lookup != null ? "top-" + aggregator.getLookup().getSize() : "выключен");
+    }
+
+    // Обрабатывает пачку действий в порядке поступления и возвращает оценки сходства всех изменённых пар
+    public synchronized List<SimilarityScore> process(List<UserActionAvro> actions) {
+        long startNanos = System.nanoTime();
+        applyWithoutScoring(actions);
+        List<SimilarityScore> scores = scoreTouchedPairs();
+        // Время отдельных действий не измеряется, чтобы не читать часы на каждом из них; среднее на действие -
+        // отношение сумм aggregator.batch.duration и aggregator.batch.size
+        batchTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        batchSize.record(actions.size());
+        return scores;
+    }
+
+    // Применяет пачку без оценки сходства: изменённые пары накапливаются до вызова scoreTouchedPairs.
+    // Используется при перестроении состояния, когда промежуточные оценки не нужны
+    public synchronized void applyWithoutScoring(List<UserActionAvro> actions) {
+        if (decay != null) decay.observe(actions);
+        runPhase(shard -> shard.applyUserActions(actions, weights, decay));
+        runPhase(shard -> shard.applyDeltas(shards));
+    }
+
+    // Этап приростов: применяет пачку к весам пользователей и возвращает приросты сумм по партициям этапа оценки.
+    // Приросты сумм событий нужны всем партициям, приросты пар - только партиции пары (по меньшему событию).
+    // Приросты одной пачки складываются; пара с нулевым суммарным приростом остаётся, так как её оценка изменилась
+    // вместе с суммами событий. Пустой список - пачка ничего не изменила
+    public synchronized List<AggregationDeltasAvro> computeDeltas(List<UserActionAvro> actions, int partitions) {
+        long startNanos = System.nanoTime();
+        runPhase(shard -> shard.applyUserActions(actions, weights, decay));
+        ShardRouter partitionRouter = new ShardRouter(partitions);
+        LongLongHashMap eventDeltas = new LongLongHashMap();
+        InteractionMatrix[] pairDeltas = new InteractionMatrix[partitions];
+        for (int i = 0; i < partitions; i++) {
+            pairDeltas[i] = new OpenHashInteractionMatrix();
+        }
+        for (AggregationShard shard : shards) {
+            for (int target = 0; target < shards.length; target++) {
+                LongTupleBuffer events = shard.eventDeltas[target];
+                for (int i = 0; i < events.size(); i++) {
+                    eventDeltas.addTo(events.get(i, AggregationShard.EVENT_ID), events.get(i, AggregationShard.EVENT_DELTA));
+                }
+                LongTupleBuffer pairs = shard.pairDeltas[target];
+                for (int i = 0; i < pairs.size(); i++) {
+                    long first = pairs.get(i, AggregationShard.FIRST);
+                    long second = pairs.get(i, AggregationShard.SECOND);
+                    pairDeltas[partitionRouter.shardOfPair(first, second)].add(first, second, pairs.get(i, AggregationShard.PAIR_DELTA));
+                }
+            }
+        }
+        if (eventDeltas.isEmpty()) return List.of();
+        List<EventSumDeltaAvro> events = new ArrayList<>(eventDeltas.size());
+        eventDeltas.forEach((eventId, delta) -> events.add(new EventSumDeltaAvro(eventId, delta)));
+        List<AggregationDeltasAvro> result = new ArrayList<>(partitions);
+        for (InteractionMatrix partitionPairs : pairDeltas) {
+            List<PairSumDeltaAvro> pairs = new ArrayList<>((int) partitionPairs.size());
+            partitionPairs.forEach((first, second, delta) -> pairs.add(new PairSumDeltaAvro(first, second, delta)));
+            result.add(new AggregationDeltasAvro(events, pairs));
+        }
+        batchTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    // Этап приростов: забывает веса пользователей, переданных другому экземпляру вместе с их партицией темы
+    // действий. Возвращает количество удалённых взаимодействий
+    public synchronized long dropUsers(LongPredicate dropped) {
+        AtomicLong removed = new AtomicLong();
+        runPhase(shard -> removed.addAndGet(shard.dropUsers(dropped)));
+        return removed.get();
+    }
+
+    // Этап оценки: применяет приросты своей партиции и возвращает оценки сходства изменённых пар.
+    // Суммы событий здесь полные (их приросты получает каждая партиция), суммы пар - только своей партиции
+    public synchronized List<SimilarityScore> applyDeltas(List<AggregationDeltasAvro> deltas) {
+        long startNanos = System.nanoTime();
+        for (AggregationShard shard : shards) {
+            shard.clearDeltas();
+        }
+        // Приросты раскладываются по шардам-получателям так, как их разложила бы фаза 1
+        AggregationShard source = shards[0];
+        for (AggregationDeltasAvro envelope : deltas) {
+            for (EventSumDeltaAvro event : envelope.getEventDeltas()) {
+                source.eventDeltas[router.shardOfEvent(event.getEventId())].add(event.getEventId(), 0L, 0L, event.getDelta());
+            }
+            for (PairSumDeltaAvro pair : envelope.getPairDeltas()) {
+                source.pairDeltas[router.shardOfPair(pair.getEventA(), pair.getEventB())]
+                        .add(pair.getEventA(), pair.getEventB(), pair.getDelta());
+            }
+        }
+        runPhase(shard -> shard.applyDeltas(shards));
+        List<SimilarityScore> scores = scoreTouchedPairs();
+        batchTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        return scores;
+    }
+
+    // Фазы 3-5: оценка всех пар, изменённых с прошлой оценки, по одной на пару
+    public synchronized List<SimilarityScore> scoreTouchedPairs() {
+        runPhase(shard -> shard.scoreTouchedPairs(shards));
+        if (bounded) {
+            runPhase(shard -> shard.updateNeighbours(shards));
+            runPhase(shard -> shard.emitBoundedScores(shards));
+        }
+        List<SimilarityScore> result = new ArrayList<>();
+        for (AggregationShard shard : shards) {
+            result.addAll(shard.scores);
+        }
+        if (lookup != null) lookup.update(result);
+        return result;
+    }
+
+    // Вытесняет взаимодействия, затухшие ниже порога, и возвращает оценки изменившихся пар
+    public synchronized List<SimilarityScore> sweepDecayed() {
+        if (decay == null) return List.of();
+        long threshold = decay.evictionThreshold();
+        runPhase(shard -> shard.evictDecayed(threshold));
+        runPhase(shard -> shard.applyDeltas(shards));
+        return scoreTouchedPairs();
+    }
+
+    // Сдвигает эпоху затухания, если хранимые веса приблизились к пределу: все веса делятся на 2^k,
+    // суммы событий и пар пересчитываются заново. Оценки сходства при этом не меняются с точностью до округления
+    public synchronized void rebaseIfDue() {
+        if (decay == null) return;
+        int shift = decay.rebaseShift();
+        if (shift == 0) return;
+        long startNanos = System.nanoTime();
+        for (AggregationShard shard : shards) {
+            LongTupleBuffer shifted = new LongTupleBuffer(3);
+            shard.weightsByUser.forEach((userId, eventId, weight) -> shifted.add(userId, eventId, weight >> shift));
+            shard.weightsByUser.clear();
+            for (int i = 0; i < shifted.size(); i++) {
+                if (shifted.get(i, 2) > 0) shard.weightsByUser.put(shifted.get(i, 0), shifted.get(i, 1), shifted.get(i, 2));
+            }
+        }
+        decay.shiftEpoch(shift);
+        rebuildSums();
+        log.info("Эпоха затухания сдвинута на {} периодов, состояние пересчитано за {} мс: {}", shift,
+                (System.nanoTime() - startNanos) / 1_000_000, stateSize());
+    }
+
+    public WeightDecay decay() {
+        return decay;
+    }
+
+    // Текущая оценка сходства пары; вызывается только между пачками
+    public synchronized double score(long eventA, long eventB) {
+        long first = Math.min(eventA, eventB);
+        long second = Math.max(eventA, eventB);
+        AggregationShard owner = shards[router.shardOfPair(first, second)];
+        return owner.score(shards, first, second, owner.minWeightSum(shards, first, second));
+    }
+
+    // Лучшие соседи события по последним оценкам; читается без блокировки, пока агрегатор обрабатывает пачки
+    public List<SimilarityScore> neighbours(long eventId, int limit) {
+        if (lookup == null) throw new IllegalStateException("Индекс соседей выключен");
+        return lookup.top(eventId, limit);
+    }
+
+    public synchronized StateSize stateSize() {
+        long userWeights = 0;
+        long eventWeights = 0;
+        long eventSums = 0;
+        long minWeightSums = 0;
+        for (AggregationShard shard : shards) {
+            userWeights += shard.weightsByUser.size();
+            eventWeights += shard.weightsByEvent.size();
+            eventSums += shard.eventSums.size();
+            minWeightSums += shard.minWeightSums.size();
+        }
+        return new StateSize(userWeights, eventWeights, eventSums, minWeightSums);
+    }
+
+    // Выгрузка состояния по разделам: сначала все веса, затем суммы событий, затем суммы пар
+    public synchronized void exportState(StateVisitor visitor) {
+        for (AggregationShard shard : shards) {
+            shard.weightsByUser.forEach(visitor::userWeight);
+        }
+        for (AggregationShard shard : shards) {
+            shard.eventSums.forEach(visitor::eventSum);
+        }
+        for (AggregationShard shard : shards) {
+            shard.minWeightSums.forEach(visitor::minWeightSum);
+        }
+    }
+
+    // Замена состояния загруженным извне; записи распределяются по шардам текущей конфигурации,
+    // поэтому количество шардов между перезапусками может меняться
+    public synchronized void importState(long decayEpochMillis, long decayWatermarkMillis, Consumer<StateVisitor> source) {
+        for (AggregationShard shard : shards) {
+            shard.clear();
+        }
+        if (decay != null) decay.restore(decayEpochMillis, decayWatermarkMillis);
+        source.accept(new StateVisitor() {
+            @Override
+            public void userWeight(long userId, long eventId, long weight) {
+                shards[router.shardOfUser(userId)].weightsByUser.put(userId, eventId, weight);
+                AggregationShard eventShard = shards[router.shardOfEvent(eventId)];
+                if (eventShard.tracksEventWeights()) eventShard.weightsByEvent.put(eventId, userId, weight);
+            }
+
+            @Override
+            public void eventSum(long eventId, long sum) {
+                shards[router.shardOfEvent(eventId)].addEventSum(eventId, sum);
+            }
+
+            @Override
+            public void minWeightSum(long first, long second, long sum) {
+                shards[router.shardOfPair(first, second)].minWeightSums.put(first, second, sum);
+            }
+        });
+        if (bounded) rebuildNeighbours();
+        if (lookup != null) rebuildLookup();
+    }
+
+    // Пересчёт сумм событий, весов по событиям и сумм минимумов пар по весам пользователей.
+    // Выполняется в вызывающем потоке, пока шарды простаивают
+    private void rebuildSums() {
+        for (AggregationShard shard : shards) {
+            shard.eventSums.clear();
+            shard.eventSumTotal = 0;
+            shard.weightsByEvent.clear();
+            shard.minWeightSums.clear();
+            shard.neighbours.clear();
+            shard.emittedScores.clear();
+        }
+        for (AggregationShard shard : shards) {
+            InteractionMatrix userWeights = shard.weightsByUser;
+            userWeights.forEach((userId, eventId, weight) -> {
+                AggregationShard eventShard = shards[router.shardOfEvent(eventId)];
+                eventShard.addEventSum(eventId, weight);
+                if (eventShard.tracksEventWeights()) eventShard.weightsByEvent.put(eventId, userId, weight);
+                userWeights.forEachInRow(userId, (anotherEventId, anotherWeight) -> {
+                    if (eventId < anotherEventId) {
+                        shards[router.shardOfEvent(eventId)].minWeightSums.add(eventId, anotherEventId,
+                                Math.min(weight, anotherWeight));
+                    }
+                });
+            });
+        }
+        if (bounded) rebuildNeighbours();
+    }
+
+    // Списки соседей не сохраняются в снимке и восстанавливаются по оценкам сохранённых пар
+    private void rebuildNeighbours() {
+        for (AggregationShard shard : shards) {
+            shard.minWeightSums.forEach((first, second, sum) -> {
+                double score = shard.score(shards, first, second, sum);
+                offer(first, second, score);
+                offer(second, first, score);
+            });
+        }
+        for (AggregationShard shard : shards) {
+            List<long[]> forgotten = new ArrayList<>();
+            shard.minWeightSums.forEach((first, second, sum) -> {
+                if (!shard.isRetained(shards, first, second)) forgotten.add(new long[]{first, second});
+            });
+            forgotten.forEach(pair -> shard.forget(pair[0], pair[1]));
+        }
+    }
+
+    // Индекс соседей после загрузки состояния заполняется оценками всех сохранённых пар
+    private void rebuildLookup() {
+        lookup.clear();
+        for (AggregationShard shard : shards) {
+            List<SimilarityScore> scores = new ArrayList<>();
+            shard.minWeightSums.forEach((first, second, sum) ->
+                    scores.add(new SimilarityScore(first, second, shard.score(shards, first, second, sum))));
+            lookup.update(scores);
+        }
+        log.info("Индекс соседей восстановлен: событий {}", lookup.size());
+    }
+
+    private void offer(long eventId, long neighbour, double score) {
+        AggregationShard shard = shards[router.shardOfEvent(eventId)];
+        shard.neighbours.computeIfAbsent(eventId, id -> new TopNeighbours(shard.neighboursCapacity)).offer(neighbour, score);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executors != null) {
+            for (ExecutorService executor : executors) {
+                executor.shutdown();
+            }
+        }
+        for (AggregationShard shard : shards) {
+            closeQuietly(shard.weightsByUser);
+            closeQuietly(shard.weightsByEvent);
+        }
+    }
+
+    private static void closeQuietly(InteractionMatrix matrix) {
+        if (!(matrix instanceof TieredInteractionMatrix tiered)) return;
+        try {
+            tiered.close();
+        } catch (IOException e) {
+            log.warn("Не удалось удалить файл холодного уровня", e);
+        }
+    }
+
+    // Размеры структур состояния читаются без блокировки: значение между пачками может быть неточным,
+    // но чтение счётчиков размера не мешает обработке
+    private void registerStateSizeMetric(MeterRegistry meterRegistry, String structure,
+                                         ToLongFunction<AggregationShard> size) {
+        Gauge.builder("aggregator.state.size", this, engine -> {
+                    long total = 0;
+                    for (AggregationShard shard : shards) {
+                        total += size.applyAsLong(shard);
+                    }
+                    return total;
+                })
+                .description("Количество записей в структурах состояния агрегатора")
+                .tag("structure", structure)
+                .register(meterRegistry);
+    }
+
+    // Метрики двухуровневого хранения: попадания, подъёмы из файла с их длительностью, размеры уровней
+    private void registerTierMetrics(MeterRegistry meterRegistry, String matrix,
+                                     Function<AggregationShard, InteractionMatrix> selector) {
+        ToLongFunction<Function<TieredInteractionMatrix, Long>> sum = metric -> {
+            long total = 0;
+            for (AggregationShard shard : shards) {
+                total += metric.apply((TieredInteractionMatrix) selector.apply(shard));
+            }
+            return total;
+        };
+        FunctionCounter.builder("aggregator.state.tier.hits", this,
+                        engine -> sum.applyAsLong(TieredInteractionMatrix::hits))
+                .description("Изменения строк, найденных в памяти")
+                .tags("matrix", matrix, "operation", "write")
+                .register(meterRegistry);
+        FunctionCounter.builder("aggregator.state.tier.hits", this,
+                        engine -> sum.applyAsLong(TieredInteractionMatrix::readHits))
+                .description("Чтения строк из памяти")
+                .tags("matrix", matrix, "operation", "read")
+                .register(meterRegistry);
+        FunctionCounter.builder("aggregator.state.tier.cold.reads", this,
+                        engine -> sum.applyAsLong(TieredInteractionMatrix::coldReads))
+                .description("Чтения строк из файла холодного уровня без подъёма в память")
+                .tag("matrix", matrix)
+                .register(meterRegistry);
+        FunctionTimer.builder("aggregator.state.tier.faults", this,
+                        engine -> sum.applyAsLong(TieredInteractionMatrix::faults),
+                        engine -> sum.applyAsLong(TieredInteractionMatrix::faultNanos), TimeUnit.NANOSECONDS)
+                .description("Подъёмы строк из файла холодного уровня")
+                .tag("matrix", matrix)
+                .register(meterRegistry);
+        FunctionCounter.builder("aggregator.state.tier.spills", this,
+                        engine -> sum.applyAsLong(TieredInteractionMatrix::spills))
+                .description("Вытеснения строк в файл холодного уровня")
+                .tag("matrix", matrix)
+                .register(meterRegistry);
+        Gauge.builder("aggregator.state.tier.rows", this, engine -> sum.applyAsLong(m -> (long) m.hotRowCount()))
+                .tags("matrix", matrix, "tier", "hot")
+                .register(meterRegistry);
+        Gauge.builder("aggregator.state.tier.rows", this, engine -> sum.applyAsLong(m -> (long) m.coldRowCount()))
+                .tags("matrix", matrix, "tier", "cold")
+                .register(meterRegistry);
+        Gauge.builder("aggregator.state.tier.file.bytes", this, engine -> sum.applyAsLong(TieredInteractionMatrix::fileSize))
+                .tag("matrix", matrix)
+                .register(meterRegistry);
+    }
+
+    // Запускает фазу на всех шардах и дожидается её завершения (барьер)
+    private void runPhase(Consumer<AggregationShard> phase) {
+        if (executors == null) {
+            phase.accept(shards[0]);
+            return;
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            AggregationShard shard = shards[i];
+            futures[i] = CompletableFuture.runAsync(() -> phase.accept(shard), executors[i]);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+}
@@ -0,0 +1,18 @@
+package ru.practicum.engine;
+
+// Мера сходства пары событий по инкрементально поддерживаемой статистике: сумме минимальных весов пары,
+// суммам весов событий и общей сумме весов. Статистика одна для всех мер, поэтому смена меры
+// не требует пересчёта состояния, а стоимость обновления остаётся пропорциональной истории пользователя.
+// Все меры не зависят от общего множителя весов, что нужно для затухания (см. WeightDecay)
+public interface SimilarityMetric {
+
+    // Аргументы в единицах веса; minWeightSum > 0
+    double score(double minWeightSum, double firstSum, double secondSum, double totalSum);
+
+    static SimilarityMetric of(String name) {
+        for (StandardSimilarityMetric metric : StandardSimilarityMetric.values()) {
+            if (metric.name().equalsIgnoreCase(name)) return metric;
+        }
+        throw new IllegalArgumentException("Неизвестная мера сходства: " + name);
+    }
+}
@@ -0,0 +1,5 @@
+package ru.practicum.engine;
+
+// Оценка сходства пары событий, eventA < eventB
+public record SimilarityScore(long eventA, long eventB, double score) {
+}
@@ -0,0 +1,29 @@
+package ru.practicum.engine;
+
+public enum StandardSimilarityMetric implements SimilarityMetric {
+
+    // Косинусная мера по минимумам весов: sum(min) / (sqrt(sumA) * sqrt(sumB))
+    COSINE {
+        @Override
+        public double score(double minWeightSum, double firstSum, double secondSum, double totalSum) {
+            return minWeightSum / (Math.sqrt(firstSum) * Math.sqrt(secondSum));
+        }
+    },
+
+    // Взвешенный коэффициент Жаккара: sum(min) / sum(max), где sum(max) = sumA + sumB - sum(min)
+    JACCARD {
+        @Override
+        public double score(double minWeightSum, double firstSum, double secondSum, double totalSum) {
+            return minWeightSum / (firstSum + secondSum - minWeightSum);
+        }
+    },
+
+    // Взвешенный лифт: доля общего веса пары относительно ожидаемой при независимости событий,
+    // sum(min) * total / (sumA * sumB). Больше единицы - события встречаются вместе чаще случайного
+    LIFT {
+        @Override
+        public double score(double minWeightSum, double firstSum, double secondSum, double totalSum) {
+            return minWeightSum * totalSum / (firstSum * secondSum);
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package ru.practicum.engine;
+
+// Количество записей в состоянии агрегатора
+public record StateSize(long userWeights, long eventWeights, long eventSums, long minWeightSums) {
+}
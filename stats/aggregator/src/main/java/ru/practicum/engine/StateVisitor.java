@@ -0,0 +1,11 @@
+package ru.practicum.engine;
+
+// Обход состояния агрегатора: веса взаимодействий, суммы весов событий и суммы минимальных весов пар
+public interface StateVisitor {
+
+    void userWeight(long userId, long eventId, long weight);
+
+    void eventSum(long eventId, long sum);
+
+    void minWeightSum(long first, long second, long sum);
+}
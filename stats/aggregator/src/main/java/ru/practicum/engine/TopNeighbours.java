@@ -0,0 +1,81 @@
+package ru.practicum.engine;
+
+// Ограниченный список соседей события: лучшие K по сходству плюс буфер кандидатов.
+// Список небольшой (K + кандидаты), поэтому хранится в неотсортированных массивах с линейным поиском.
+// При равном сходстве выше считается сосед с меньшим идентификатором.
+class TopNeighbours {
+
+    private final long[] neighbours;
+    private final double[] scores;
+    private int size;
+
+    // Вытесненный последним вызовом offer сосед
+    private long evicted;
+
+    TopNeighbours(int capacity) {
+        this.neighbours = new long[capacity];
+        this.scores = new double[capacity];
+    }
+
+    // Добавляет или обновляет соседа. Возвращает true, если из списка вытеснен сосед (см. evicted);
+    // им может оказаться и сам предложенный, если он хуже всех в заполненном списке
+    boolean offer(long neighbour, double score) {
+        int index = indexOf(neighbour);
+        if (index >= 0) {
+            scores[index] = score;
+            return false;
+        }
+        if (size < neighbours.length) {
+            neighbours[size] = neighbour;
+            scores[size] = score;
+            size++;
+            return false;
+        }
+        int worst = 0;
+        for (int i = 1; i < size; i++) {
+            if (better(neighbours[worst], scores[worst], neighbours[i], scores[i])) worst = i;
+        }
+        if (!better(neighbour, score, neighbours[worst], scores[worst])) {
+            evicted = neighbour;
+            return true;
+        }
+        evicted = neighbours[worst];
+        neighbours[worst] = neighbour;
+        scores[worst] = score;
+        return true;
+    }
+
+    long evicted() {
+        return evicted;
+    }
+
+    boolean contains(long neighbour) {
+        return indexOf(neighbour) >= 0;
+    }
+
+    // Входит ли сосед в лучшие k
+    boolean isTop(long neighbour, int k) {
+        int index = indexOf(neighbour);
+        if (index < 0) return false;
+        int better = 0;
+        for (int i = 0; i < size; i++) {
+            if (i != index && better(neighbours[i], scores[i], neighbour, scores[index]) && ++better >= k) return false;
+        }
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int indexOf(long neighbour) {
+        for (int i = 0; i < size; i++) {
+            if (neighbours[i] == neighbour) return i;
+        }
+        return -1;
+    }
+
+    private static boolean better(long neighbourA, double scoreA, long neighbourB, double scoreB) {
+        return scoreA > scoreB || (scoreA == scoreB && neighbourA < neighbourB);
+    }
+}
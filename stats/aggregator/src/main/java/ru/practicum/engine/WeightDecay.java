@@ -0,0 +1,81 @@
+package ru.practicum.engine;
+
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CustomProperties;
+import ru.practicum.weight.FixedPointWeight;
+
+import java.util.List;
+
+// Затухание весов с периодом полураспада. Веса хранятся в «прямой» форме: вес действия, умноженный
+// на 2^((t - epoch) / halfLife), где t - время действия. Текущее значение веса - это хранимое значение,
+// умноженное на общий для всех множитель 2^(-(now - epoch) / halfLife), поэтому затухание не требует
+// обхода состояния: суммы событий и суммы минимумов пар остаются точными суммами хранимых значений,
+// а косинусная оценка сходства от общего множителя не зависит.
+// Хранимые значения растут со временем, поэтому раз в rebaseAfterHalfLives периодов эпоха сдвигается
+// и все веса делятся на степень двойки (см. ShardedAggregationEngine.rebaseIfDue).
+public class WeightDecay {
+
+    private final long halfLifeMillis;
+    private final long epsilon;
+    private final int rebaseAfterHalfLives;
+
+    // Эпоха задаётся временем первого действия; водяной знак - самое позднее время действия
+    private long epochMillis = Long.MIN_VALUE;
+    private long watermarkMillis = Long.MIN_VALUE;
+
+    public WeightDecay(CustomProperties.Decay properties) {
+        this.halfLifeMillis = properties.getHalfLife().toMillis();
+        this.epsilon = FixedPointWeight.parse(properties.getEpsilon());
+        this.rebaseAfterHalfLives = properties.getRebaseAfterHalfLives();
+        if (halfLifeMillis <= 0) throw new IllegalArgumentException("Период полураспада должен быть положительным");
+        // Вес в микроединицах (до 2^20) с множителем до 2^(16 + 2) оставляет запас на 2^25 слагаемых в сумме
+        if (rebaseAfterHalfLives < 1 || rebaseAfterHalfLives > 16) {
+            throw new IllegalArgumentException("Сдвиг эпохи допускается раз в 1..16 периодов: " + rebaseAfterHalfLives);
+        }
+    }
+
+    // Вызывается перед обработкой пачки в вызывающем потоке, шарды затем только читают эпоху
+    void observe(List<UserActionAvro> actions) {
+        for (UserActionAvro action : actions) {
+            long timestamp = action.getTimestamp().toEpochMilli();
+            if (epochMillis == Long.MIN_VALUE) epochMillis = timestamp;
+            watermarkMillis = Math.max(watermarkMillis, timestamp);
+        }
+    }
+
+    // Хранимое значение веса действия; не меньше единицы, так как нулевой вес означает удаление
+    long forward(long weight, long timestampMillis) {
+        double exponent = Math.min((double) (timestampMillis - epochMillis) / halfLifeMillis, rebaseAfterHalfLives + 2);
+        return Math.max(1L, Math.round(weight * Math.pow(2, exponent)));
+    }
+
+    // Порог хранимого значения, ниже которого текущий вес меньше epsilon
+    long evictionThreshold() {
+        if (watermarkMillis == Long.MIN_VALUE) return 0L;
+        return Math.round(epsilon * Math.pow(2, (double) (watermarkMillis - epochMillis) / halfLifeMillis));
+    }
+
+    // Количество целых периодов, на которое пора сдвинуть эпоху, или 0
+    int rebaseShift() {
+        if (watermarkMillis == Long.MIN_VALUE) return 0;
+        long halfLives = (watermarkMillis - epochMillis) / halfLifeMillis;
+        return halfLives >= rebaseAfterHalfLives ? (int) halfLives : 0;
+    }
+
+    void shiftEpoch(int halfLives) {
+        epochMillis += halfLives * halfLifeMillis;
+    }
+
+    public long epochMillis() {
+        return epochMillis;
+    }
+
+    public long watermarkMillis() {
+        return watermarkMillis;
+    }
+
+    void restore(long epochMillis, long watermarkMillis) {
+        this.epochMillis = epochMillis;
+        this.watermarkMillis = watermarkMillis;
+    }
+}
@@ -0,0 +1,55 @@
+package ru.practicum.grpc;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.devh.boot.grpc.server.service.GrpcService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import ru.practicum.engine.ShardedAggregationEngine;
+import ru.practicum.engine.SimilarityScore;
+import ru.practicum.grpc.aggregator.SimilarityLookupControllerGrpc;
+import ru.practicum.grpc.similarity.reports.NeighboursRequestProto;
+import ru.practicum.grpc.similarity.reports.RecommendedEventProto;
+
+import java.util.List;
+
+// Похожие события из памяти агрегатора: оценки те же, что отправлены в Kafka, но без задержки доставки
+// и записи в базу анализатора. Запрос не блокирует обработку пачек
+@Slf4j
+@GrpcService
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "my-area-guide.aggregator.lookup.enabled", havingValue = "true")
+public class GrpcSimilarityLookupController extends SimilarityLookupControllerGrpc.SimilarityLookupControllerImplBase {
+
+    private final ShardedAggregationEngine aggregationEngine;
+
+    @Override
+    public void getNeighbours(
+            NeighboursRequestProto request,
+            StreamObserver<RecommendedEventProto> responseObserver
+    ) {
+        if (request.getMaxResults() <= 0) {
+            responseObserver.onError(new StatusRuntimeException(
+                    Status.INVALID_ARGUMENT.withDescription("max_results должно быть положительным")));
+            return;
+        }
+        try {
+            List<SimilarityScore> neighbours = aggregationEngine.neighbours(request.getEventId(), request.getMaxResults());
+            for (SimilarityScore neighbour : neighbours) {
+                responseObserver.onNext(RecommendedEventProto.newBuilder()
+                        .setEventId(neighbour.eventB())
+                        .setScore(neighbour.score())
+                        .build());
+            }
+            responseObserver.onCompleted();
+            log.debug("Передали {} соседей события {}", neighbours.size(), request.getEventId());
+        } catch (Exception e) {
+            log.error("Ошибка при поиске соседей события: {}", e.getMessage(), e);
+            responseObserver.onError(
+                    new StatusRuntimeException(Status.INTERNAL.withDescription(e.getMessage()).withCause(e))
+            );
+        }
+    }
+}
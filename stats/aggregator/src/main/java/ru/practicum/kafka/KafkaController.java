@@ -1,37 +1,222 @@
 package ru.practicum.kafka;
 
+import jakarta.annotation.PreDestroy;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ConsumerSeekAware;
 import org.springframework.stereotype.Service;
+import ru.practicum.engine.AggregationStage;
+import ru.practicum.engine.ShardedAggregationEngine;
+import ru.practicum.ewm.stats.avro.AggregationDeltasAvro;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.key.UserActionKey;
 import ru.practicum.properties.CustomProperties;
+import ru.practicum.rebuild.RebuildService;
 import ru.practicum.service.UserActionService;
+import ru.practicum.snapshot.SnapshotService;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+@Slf4j
 @Service
 @RequiredArgsConstructor
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
-public class KafkaController {
+public class KafkaController implements ConsumerSeekAware {
+
+    static final String USER_ACTIONS_LISTENER = "userActions";
+    static final String DELTAS_LISTENER = "aggregationDeltas";
 
-    KafkaTemplate<Void, SpecificRecordBase> kafkaTemplate;
+    KafkaTemplate<String, SpecificRecordBase> kafkaTemplate;
     KafkaListenerEndpointRegistry kafkaRegistry;
     CustomProperties customProperties;
     UserActionService userActionService;
+    ShardedAggregationEngine aggregationEngine;
+    SnapshotService snapshotService;
+    RebuildService rebuildService;
+
+    // Смещения по партициям, до которых действия учтены в состоянии агрегатора
+    Map<Integer, Long> processedOffsets = new ConcurrentHashMap<>();
+
+    // Закоммиченные смещения группы для партиций, чтение которых продолжено с более раннего смещения снимка.
+    // Действия до них уже учтены в отправленных оценках и применяются повторно без отправки
+    Map<Integer, Long> replayOffsets = new ConcurrentHashMap<>();
+    Set<TopicPartition> assignedPartitions = ConcurrentHashMap.newKeySet();
+
+    // Этап приростов держит веса только пользователей своих партиций темы действий (ключ user-id).
+    // Партиции, отобранные при перебалансировке: веса их пользователей удаляются перед следующей пачкой,
+    // если партиция не вернулась. Партиции, назначенные без состояния, перечитываются с начала
+    Set<Integer> revokedPartitions = ConcurrentHashMap.newKeySet();
+    Set<Integer> rereadPartitions = ConcurrentHashMap.newKeySet();
+
+    // Слушатель пакетный: действия одного poll обрабатываются вместе, смещения коммитятся один раз на пачку.
+    // Значение записи - список действий: одно действие или распакованный конверт UserActionBatchAvro.
+    // В транзакционном режиме смещения пачки фиксируются в одной транзакции с отправленными оценками
+    @KafkaListener(id = USER_ACTIONS_LISTENER, idIsGroup = false, topics = "#{customProperties.kafka.userActionTopic}",
+            batch = "true")
+    public void listen(List<ConsumerRecord<Long, List<UserActionAvro>>> records, Consumer<?, ?> consumer) {
+        beforeBatch(consumer);
+        List<UserActionAvro> replayed = new ArrayList<>();
+        List<UserActionAvro> userActions = splitReplayed(records, Function.identity(), replayed);
+        if (!replayed.isEmpty()) userActionService.replayUserActions(replayed);
+        userActionService.processUserActions(userActions);
+        afterBatch(records);
+    }
+
+    // Этап оценки двухэтапного режима: приросты этапа приростов обрабатываются так же, как действия
+    @KafkaListener(id = DELTAS_LISTENER, idIsGroup = false, topics = "#{customProperties.kafka.aggregationDeltasTopic}",
+            batch = "true", properties = "value.deserializer=ru.practicum.deserializer.AggregationDeltasAvroDeserializer")
+    public void listenDeltas(List<ConsumerRecord<Long, AggregationDeltasAvro>> records, Consumer<?, ?> consumer) {
+        beforeBatch(consumer);
+        List<AggregationDeltasAvro> replayed = new ArrayList<>();
+        List<AggregationDeltasAvro> deltas = splitReplayed(records, List::of, replayed);
+        if (!replayed.isEmpty()) userActionService.replayDeltas(replayed);
+        userActionService.processDeltas(deltas);
+        afterBatch(records);
+    }
+
+    // Снимок делается до применения пачки, когда результаты предыдущих пачек уже подтверждены,
+    // поэтому восстановленное состояние никогда не опережает зафиксированный выход
+    private void beforeBatch(Consumer<?, ?> consumer) {
+        dropRevokedUsers(consumer);
+        if (!userActionService.hasUncommittedScores()) snapshotService.snapshotIfDue(processedOffsets);
+        resolveReplayOffsets(consumer);
+    }
+
+    // Записи до закоммиченного смещения группы применяются повторно без отправки, остальные возвращаются.
+    // Значение записи может содержать несколько элементов (конверт пачки), unpack возвращает их по порядку
+    private <V, T> List<T> splitReplayed(List<ConsumerRecord<Long, V>> records, Function<V, List<T>> unpack,
+                                         List<T> replayed) {
+        List<T> values = new ArrayList<>(records.size());
+        for (ConsumerRecord<Long, V> record : records) {
+            Long replayUntil = replayOffsets.get(record.partition());
+            if (replayUntil != null && record.offset() < replayUntil) {
+                replayed.addAll(unpack.apply(record.value()));
+            } else {
+                values.addAll(unpack.apply(record.value()));
+            }
+        }
+        return values;
+    }
 
-    @KafkaListener(topics = "#{customProperties.kafka.userActionTopic}")
-    public void listen(UserActionAvro userActionAvro) {
-        userActionService.processUserAction(userActionAvro);
+    private void afterBatch(List<? extends ConsumerRecord<?, ?>> records) {
+        for (ConsumerRecord<?, ?> record : records) {
+            processedOffsets.merge(record.partition(), record.offset() + 1, Math::max);
+        }
     }
 
+    // Состояние агрегатора соответствует processedOffsets, а не закоммиченным смещениям группы,
+    // поэтому при назначении партиции чтение продолжается с учтённого смещения. Этап приростов читает
+    // партицию без состояния с начала: до закоммиченного смещения действия применяются без отправки приростов
+    @Override
+    public void onPartitionsAssigned(Map<TopicPartition, Long> assignments, ConsumerSeekCallback callback) {
+        assignments.keySet().forEach(partition -> {
+            revokedPartitions.remove(partition.partition());
+            Long offset = processedOffsets.get(partition.partition());
+            if (offset != null) {
+                log.info("Партиция {} продолжает чтение со смещения {}", partition, offset);
+                callback.seek(partition.topic(), partition.partition(), offset);
+            } else if (isPartitionAware()) {
+                log.info("Партиция {} назначена без состояния, веса её пользователей восстанавливаются с начала", partition);
+                rereadPartitions.add(partition.partition());
+                callback.seekToBeginning(partition.topic(), partition.partition());
+            }
+        });
+        assignedPartitions.addAll(assignments.keySet());
+    }
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+        if (!isPartitionAware()) return;
+        partitions.forEach(partition -> revokedPartitions.add(partition.partition()));
+    }
+
+    // Веса удаляются в потоке потребителя между пачками; партиция пользователя считается так же, как у коллектора
+    private void dropRevokedUsers(Consumer<?, ?> consumer) {
+        if (revokedPartitions.isEmpty()) return;
+        Set<Integer> dropped = new HashSet<>(revokedPartitions);
+        revokedPartitions.removeAll(dropped);
+        int partitions = consumer.partitionsFor(customProperties.getKafka().getUserActionTopic()).size();
+        long removed = aggregationEngine.dropUsers(userId -> dropped.contains(UserActionKey.partitionOf(userId, partitions)));
+        dropped.forEach(partition -> {
+            processedOffsets.remove(partition);
+            replayOffsets.remove(partition);
+            rereadPartitions.remove(partition);
+        });
+        log.info("Партиции {} переданы другому экземпляру, удалено {} взаимодействий их пользователей", dropped, removed);
+    }
+
+    private boolean isPartitionAware() {
+        return customProperties.getAggregator().getTopology().getStage() == AggregationStage.DELTAS;
+    }
+
+    // Закоммиченные смещения запрашиваются один раз после назначения партиций, в потоке потребителя
+    private void resolveReplayOffsets(Consumer<?, ?> consumer) {
+        if (assignedPartitions.isEmpty()) return;
+        Set<TopicPartition> partitions = new HashSet<>(assignedPartitions);
+        assignedPartitions.removeAll(partitions);
+        Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(partitions);
+        committed.forEach((partition, offsetAndMetadata) -> {
+            Long processed = processedOffsets.get(partition.partition());
+            if (rereadPartitions.remove(partition.partition()) && offsetAndMetadata != null) {
+                log.info("Партиция {}: действия до смещения {} применяются повторно без отправки приростов",
+                        partition, offsetAndMetadata.offset());
+                replayOffsets.put(partition.partition(), offsetAndMetadata.offset());
+            } else if (offsetAndMetadata != null && processed != null && processed < offsetAndMetadata.offset()) {
+                log.info("Партиция {}: действия со смещения {} до {} применяются повторно без отправки оценок",
+                        partition, processed, offsetAndMetadata.offset());
+                replayOffsets.put(partition.partition(), offsetAndMetadata.offset());
+            }
+        });
+    }
+
+    // Состояние перестраивается по всей истории темы либо загружается из снимка, после чего запускается слушатель
+    // входной темы этапа: приростов для этапа оценки, действий пользователей для остальных
     @EventListener(ApplicationReadyEvent.class)
-    public void initKafkaProducer() {
-        kafkaTemplate.flush();
-        kafkaRegistry.start();
+    public void initKafkaProducer() throws InterruptedException {
+        // Транзакционный шаблон отправляет только внутри транзакции
+        if (!kafkaTemplate.isTransactional()) kafkaTemplate.flush();
+        AggregationStage stage = customProperties.getAggregator().getTopology().getStage();
+        if (rebuildService.isEnabled() && stage != AggregationStage.SINGLE) {
+            throw new IllegalStateException("Перестроение состояния по истории поддерживается только в режиме single");
+        }
+        if (stage == AggregationStage.DELTAS && customProperties.getKafka().getUserActionKey() != UserActionKey.USER_ID) {
+            throw new IllegalStateException("Этапу приростов нужны действия с ключом user-id: все действия пользователя в одной партиции");
+        }
+        if (rebuildService.isEnabled()) {
+            processedOffsets.putAll(rebuildService.rebuild());
+            snapshotService.snapshot(processedOffsets);
+        } else {
+            processedOffsets.putAll(snapshotService.restore());
+        }
+        kafkaRegistry.getListenerContainer(stage == AggregationStage.SCORING ? DELTAS_LISTENER : USER_ACTIONS_LISTENER)
+                .start();
+    }
+
+    // Контейнеры слушателей к этому моменту остановлены, последний снимок сокращает повторное чтение при старте.
+    // Снимок с неподтверждёнными оценками не сохраняется: пачка будет прочитана заново с прошлого снимка
+    @PreDestroy
+    public void saveSnapshot() {
+        if (!processedOffsets.isEmpty() && !userActionService.hasUncommittedScores()) {
+            snapshotService.snapshot(processedOffsets);
+        }
     }
 }
\ No newline at end of file
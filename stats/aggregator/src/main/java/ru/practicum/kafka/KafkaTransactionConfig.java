@@ -0,0 +1,35 @@
+package ru.practicum.kafka;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.listener.AfterRollbackProcessor;
+import org.springframework.kafka.listener.DefaultAfterRollbackProcessor;
+import org.springframework.kafka.transaction.KafkaTransactionManager;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.util.backoff.FixedBackOff;
+
+// Обработка отката транзакции слушателя (транзакционный режим включается свойством
+// spring.kafka.producer.transaction-id-prefix). Пачка перечитывается до успешной фиксации:
+// пропуск пачки после нескольких попыток нарушил бы exactly-once, так как её действия уже учтены в состоянии
+@Configuration
+public class KafkaTransactionConfig {
+
+    private static final long RETRY_INTERVAL_MILLIS = 1_000;
+
+    // В отличие от менеджера по умолчанию включает синхронизацию: UserActionService по ней узнаёт,
+    // зафиксирована ли транзакция с оценками пачки
+    @Bean
+    @ConditionalOnProperty(name = "spring.kafka.producer.transaction-id-prefix")
+    public KafkaTransactionManager<?, ?> kafkaTransactionManager(ProducerFactory<?, ?> producerFactory) {
+        KafkaTransactionManager<?, ?> transactionManager = new KafkaTransactionManager<>(producerFactory);
+        transactionManager.setTransactionSynchronization(AbstractPlatformTransactionManager.SYNCHRONIZATION_ON_ACTUAL_TRANSACTION);
+        return transactionManager;
+    }
+
+    @Bean
+    public AfterRollbackProcessor<Object, Object> afterRollbackProcessor() {
+        return new DefaultAfterRollbackProcessor<>(new FixedBackOff(RETRY_INTERVAL_MILLIS, FixedBackOff.UNLIMITED_ATTEMPTS));
+    }
+}
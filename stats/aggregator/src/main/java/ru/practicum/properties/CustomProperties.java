@@ -4,27 +4,41 @@ import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import ru.practicum.engine.AggregationStage;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.key.UserActionKey;
+import ru.practicum.weight.FixedPointWeight;
 
-import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
 
 @Getter
 @Setter
 @ConfigurationProperties("my-area-guide")
 @Component
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
-public class CustomProperties {
+public class CustomProperties implements InitializingBean {
 
     Kafka kafka = new Kafka();
     Aggregator aggregator = new Aggregator();
 
+    // Неверные настройки останавливают запуск, а не обнаруживаются при первом снимке
+    @Override
+    public void afterPropertiesSet() {
+        aggregator.getSnapshot().validate();
+    }
+
     @Getter
     @Setter
     public static class Kafka {
         private String userActionTopic = "user-actions";       // Тема для действий пользователей
         private String eventsSimilarityTopic = "events-similarity"; // Тема для сходства событий
+        private String aggregationDeltasTopic = "aggregation-deltas"; // Тема приростов между этапами агрегации
+        private boolean batchEnvelopes = false;                // Отправлять оценки конвертами EventSimilarityBatchAvro
+        private UserActionKey userActionKey = UserActionKey.NONE; // Ключ записей действий, как у коллектора
     }
 
     @Getter
@@ -32,6 +46,96 @@ public class CustomProperties {
     public static class Aggregator {
         private final Weights weights = new Weights();
         private String minimumSumAlgorithm = "optimized";      // Алгоритм минимальных сумм
+        private String similarityMetric = "cosine";            // Мера сходства: cosine, jaccard или lift
+        private int shardCount = 1;                            // Количество шардов (потоков) агрегации
+        private final Snapshot snapshot = new Snapshot();
+        private final TopK topK = new TopK();
+        private final FanOut fanOut = new FanOut();
+        private final Decay decay = new Decay();
+        private final Tiered tiered = new Tiered();
+        private final Rebuild rebuild = new Rebuild();
+        private final Trace trace = new Trace();
+        private final Lookup lookup = new Lookup();
+        private final Topology topology = new Topology();
+    }
+
+    @Getter
+    @Setter
+    public static class Topology {
+        private AggregationStage stage = AggregationStage.SINGLE; // Роль экземпляра: single, deltas или scoring
+        private int scoringPartitions = 1;                    // Партиций темы приростов (экземпляров этапа оценки)
+    }
+
+    @Getter
+    @Setter
+    public static class Lookup {
+        private boolean enabled = false;                      // Индекс соседей для gRPC-запросов GetNeighbours
+        private int size = 100;                               // Соседей в индексе на событие
+    }
+
+    @Getter
+    @Setter
+    public static class Trace {
+        private int sampleEvery = 1000;                       // Каждое N-е действие в отладочном журнале, 0 - ни одного
+    }
+
+    @Getter
+    @Setter
+    public static class Rebuild {
+        private boolean enabled = false;                      // Перестроить состояние по всей истории при старте
+        private int readers = 4;                              // Параллельных читателей партиций
+        private int maxPollRecords = 10_000;                  // Записей за один poll
+        private int queueCapacity = 16;                       // Пачек в очереди между читателями и агрегатором
+        private Duration progressInterval = Duration.ofSeconds(10); // Интервал отчёта о скорости
+    }
+
+    @Getter
+    @Setter
+    public static class Tiered {
+        private boolean enabled = false;                      // Вытеснение холодных строк весов в файл
+        private String directory = "spill";                   // Каталог файлов холодного уровня
+        private int maxHotUsers = 1_000_000;                  // Пользователей в памяти на весь агрегатор
+        private int maxHotEvents = 200_000;                   // Событий в памяти на весь агрегатор
+    }
+
+    @Getter
+    @Setter
+    public static class Decay {
+        private boolean enabled = false;                      // Затухание весов взаимодействий
+        private Duration halfLife = Duration.ofDays(30);      // Период полураспада веса
+        private String epsilon = "0.01";                      // Вес, ниже которого взаимодействие забывается
+        private Duration sweepInterval = Duration.ofMinutes(10); // Интервал очистки затухших взаимодействий
+        private int rebaseAfterHalfLives = 16;                // Через сколько периодов сдвигать эпоху весов
+    }
+
+    @Getter
+    @Setter
+    public static class FanOut {
+        private int maxUserHistory = 0;                       // Максимум событий в истории пользователя, 0 - без ограничения
+    }
+
+    @Getter
+    @Setter
+    public static class TopK {
+        private boolean enabled = false;                      // Хранить только лучших соседей событий
+        private int size = 50;                                // Количество лучших соседей события (K)
+        private int candidates = 50;                          // Буфер кандидатов сверх K
+        private double minScoreChange = 0.01;                 // Минимальное изменение оценки для повторной отправки
+    }
+
+    @Getter
+    @Setter
+    public static class Snapshot {
+        private boolean enabled = false;                      // Включены ли снимки состояния
+        private String path;                                  // Файл снимка, абсолютный путь
+        private Duration interval = Duration.ofMinutes(1);    // Интервал между снимками
+
+        // Относительный путь зависел бы от рабочего каталога процесса, и после перезапуска снимок мог бы не найтись
+        public void validate() {
+            if (enabled && (path == null || !Path.of(path).isAbsolute())) {
+                throw new IllegalStateException("Для снимков состояния нужен абсолютный путь my-area-guide.aggregator.snapshot.path");
+            }
+        }
     }
 
     @Getter
@@ -41,11 +145,37 @@ public class CustomProperties {
         private String register = "0.7";                      // Вес регистраций
         private String view = "0.3";                          // Вес просмотров
 
-        public BigDecimal ofUserAction(UserActionAvro userActionAvro) {
+        // Веса в фиксированной точке, разбираются один раз при установке свойств
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private long likeWeight = FixedPointWeight.parse(like);
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private long registerWeight = FixedPointWeight.parse(register);
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private long viewWeight = FixedPointWeight.parse(view);
+
+        public void setLike(String like) {
+            this.likeWeight = FixedPointWeight.parse(like);
+            this.like = like;
+        }
+
+        public void setRegister(String register) {
+            this.registerWeight = FixedPointWeight.parse(register);
+            this.register = register;
+        }
+
+        public void setView(String view) {
+            this.viewWeight = FixedPointWeight.parse(view);
+            this.view = view;
+        }
+
+        public long ofUserAction(UserActionAvro userActionAvro) {
             return switch (userActionAvro.getActionType()) {
-                case LIKE -> new BigDecimal(like);           // Вес лайка
-                case REGISTER -> new BigDecimal(register);   // Вес регистрации
-                default -> new BigDecimal(view);              // По умолчанию вес просмотра
+                case LIKE -> likeWeight;                      // Вес лайка
+                case REGISTER -> registerWeight;              // Вес регистрации
+                default -> viewWeight;                        // По умолчанию вес просмотра
             };
         }
     }
@@ -0,0 +1,189 @@
+package ru.practicum.rebuild;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.stereotype.Service;
+import ru.practicum.engine.ShardedAggregationEngine;
+import ru.practicum.engine.SimilarityScore;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CustomProperties;
+import ru.practicum.service.UserActionService;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Перестроение состояния агрегатора по всей истории темы действий.
+// Конечные смещения партиций фиксируются в начале; партиции читаются с начала параллельными читателями
+// без группы потребителей, пачки применяются к агрегатору без оценки сходства. После чтения по каждой
+// изменённой паре отправляется одна итоговая оценка, а живое чтение продолжается с зафиксированных смещений,
+// поэтому действия, пришедшие во время перестроения, не теряются и не учитываются дважды.
+@Slf4j
+@Service
+public class RebuildService {
+
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+
+    private final ConsumerFactory<Long, List<UserActionAvro>> consumerFactory;
+    private final ShardedAggregationEngine engine;
+    private final UserActionService userActionService;
+    private final CustomProperties.Rebuild properties;
+    private final String topic;
+
+    public RebuildService(ConsumerFactory<Long, List<UserActionAvro>> consumerFactory, ShardedAggregationEngine engine,
+                          UserActionService userActionService, CustomProperties customProperties) {
+        this.consumerFactory = consumerFactory;
+        this.engine = engine;
+        this.userActionService = userActionService;
+        this.properties = customProperties.getAggregator().getRebuild();
+        this.topic = customProperties.getKafka().getUserActionTopic();
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    // Перестраивает состояние и возвращает смещения, с которых продолжается живое чтение
+    public Map<Integer, Long> rebuild() throws InterruptedException {
+        long startNanos = System.nanoTime();
+        Map<TopicPartition, Long> endOffsets;
+        try (Consumer<Long, List<UserActionAvro>> consumer = createConsumer("meta")) {
+            List<TopicPartition> partitions = new ArrayList<>();
+            for (PartitionInfo info : consumer.partitionsFor(topic)) {
+                partitions.add(new TopicPartition(topic, info.partition()));
+            }
+            endOffsets = consumer.endOffsets(partitions);
+            Map<TopicPartition, Long> beginningOffsets = consumer.beginningOffsets(partitions);
+            long total = 0;
+            for (TopicPartition partition : partitions) {
+                total += endOffsets.get(partition) - beginningOffsets.get(partition);
+            }
+            log.info("Перестроение состояния из темы {}: партиций {}, записей {}, конечные смещения {}",
+                    topic, partitions.size(), total, endOffsets);
+            readAll(partitions, endOffsets, beginningOffsets, total);
+        }
+
+        List<SimilarityScore> scores = engine.scoreTouchedPairs();
+        userActionService.sendScores(scores);
+        Map<Integer, Long> offsets = new HashMap<>();
+        endOffsets.forEach((partition, offset) -> offsets.put(partition.partition(), offset));
+        log.info("Перестроение завершено за {} с: {}, отправлено {} оценок сходства, живое чтение продолжится с {}",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos), engine.stateSize(), scores.size(), offsets);
+        return offsets;
+    }
+
+    // Читатели разбирают записи и складывают пачки в ограниченную очередь, вызывающий поток применяет их к агрегатору
+    private void readAll(List<TopicPartition> partitions, Map<TopicPartition, Long> endOffsets,
+                         Map<TopicPartition, Long> beginningOffsets, long total) throws InterruptedException {
+        int readers = Math.max(1, Math.min(properties.getReaders(), partitions.size()));
+        BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(properties.getQueueCapacity());
+        ExecutorService executor = Executors.newFixedThreadPool(readers, runnable -> new Thread(runnable, "aggregator-rebuild-reader"));
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            List<TopicPartition> assigned = new ArrayList<>();
+            for (int p = i; p < partitions.size(); p += readers) {
+                if (endOffsets.get(partitions.get(p)) > beginningOffsets.get(partitions.get(p))) assigned.add(partitions.get(p));
+            }
+            if (assigned.isEmpty()) continue;
+            String suffix = String.valueOf(i);
+            futures.add(executor.submit(() -> {
+                read(suffix, assigned, endOffsets, batches);
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        long applied = 0;
+        long read = 0;
+        long startNanos = System.nanoTime();
+        long reportNanos = startNanos + properties.getProgressInterval().toNanos();
+        try {
+            while (!executor.isTerminated() || !batches.isEmpty()) {
+                Batch batch = batches.poll(100, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    engine.applyWithoutScoring(batch.userActions());
+                    applied += batch.userActions().size();
+                    read += batch.records();
+                }
+                if (System.nanoTime() >= reportNanos) {
+                    reportProgress(read, total, applied, startNanos);
+                    reportNanos = System.nanoTime() + properties.getProgressInterval().toNanos();
+                }
+                checkReaders(futures);
+            }
+            checkReaders(futures);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new IllegalStateException("Перестроение состояния прервано ошибкой читателя", e.getCause());
+        }
+        reportProgress(read, total, applied, startNanos);
+    }
+
+    private static void checkReaders(List<Future<?>> futures) throws ExecutionException, InterruptedException {
+        for (Future<?> future : futures) {
+            if (future.isDone()) future.get();
+        }
+    }
+
+    private void read(String suffix, List<TopicPartition> partitions, Map<TopicPartition, Long> endOffsets,
+                      BlockingQueue<Batch> batches) throws InterruptedException {
+        try (Consumer<Long, List<UserActionAvro>> consumer = createConsumer(suffix)) {
+            consumer.assign(partitions);
+            consumer.seekToBeginning(partitions);
+            List<TopicPartition> remaining = new ArrayList<>(partitions);
+            while (!remaining.isEmpty()) {
+                ConsumerRecords<Long, List<UserActionAvro>> records = consumer.poll(POLL_TIMEOUT);
+                List<UserActionAvro> userActions = new ArrayList<>(records.count());
+                int count = 0;
+                for (ConsumerRecord<Long, List<UserActionAvro>> record : records) {
+                    // Записи после зафиксированного смещения достанутся живому чтению
+                    if (record.offset() < endOffsets.get(new TopicPartition(record.topic(), record.partition()))) {
+                        userActions.addAll(record.value());
+                        count++;
+                    }
+                }
+                if (count > 0) batches.put(new Batch(userActions, count));
+                remaining.removeIf(partition -> consumer.position(partition) >= endOffsets.get(partition));
+                consumer.pause(partitions.stream().filter(partition -> !remaining.contains(partition)).toList());
+            }
+        }
+    }
+
+    // Прогресс считается по записям темы: запись может быть конвертом с пачкой действий
+    private void reportProgress(long read, long total, long applied, long startNanos) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        log.info("Перестроение: прочитано {} из {} записей ({}%), применено {} действий, {} действий/с", read, total,
+                total == 0 ? 100 : read * 100 / total, applied, Math.round(applied / seconds));
+    }
+
+    private Consumer<Long, List<UserActionAvro>> createConsumer(String suffix) {
+        Properties overrides = new Properties();
+        overrides.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, properties.getMaxPollRecords());
+        overrides.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, 1 << 20);
+        overrides.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, 100);
+        overrides.put(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG, 8 << 20);
+        overrides.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        // Партиции назначаются вручную и смещения не коммитятся, поэтому группа потребителей не затрагивается
+        return consumerFactory.createConsumer(null, "aggregator-rebuild-", suffix, overrides);
+    }
+
+    // Действия записей одного poll и число этих записей
+    private record Batch(List<UserActionAvro> userActions, int records) {
+    }
+}
@@ -1,142 +1,295 @@
 package ru.practicum.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.AccessLevel;
-import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.kafka.core.KafkaOperations;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.practicum.batch.AvroBatches;
+import ru.practicum.engine.AggregationStage;
+import ru.practicum.engine.ShardedAggregationEngine;
+import ru.practicum.engine.SimilarityScore;
+import ru.practicum.ewm.stats.avro.AggregationDeltasAvro;
 import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityBatchAvro;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
 import ru.practicum.properties.CustomProperties;
 
-import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 @Slf4j
 @Service
-@RequiredArgsConstructor
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class UserActionService {
 
-    KafkaTemplate<Void, SpecificRecordBase> kafkaTemplate;
+    // Оценок в одном конверте: около 15 байт на оценку, конверт остаётся меньше max.request.size по умолчанию
+    static final int MAX_ENVELOPE_SIZE = 10_000;
+
+    KafkaTemplate<String, SpecificRecordBase> kafkaTemplate;
     CustomProperties customProperties;
+    ShardedAggregationEngine aggregationEngine;
+    Timer sendTimer;
+    Counter emittedScores;
+    AtomicLong tracedActions = new AtomicLong();
 
-    // Веса взаимодействия по юзеру
-    Map<Long, Map<Long, BigDecimal>> weightsByUser = new HashMap<>();
+    // Пары, оценки которых отправлены, но не подтверждены (в транзакционном режиме - не зафиксированы).
+    // Повторно доставленная пачка уже учтена в состоянии и новых оценок не даёт, поэтому при следующей
+    // отправке по этим парам отправляются их текущие оценки
+    Set<EventPair> uncommittedPairs = ConcurrentHashMap.newKeySet();
 
-    // Веса взаимодействия по событию
-    Map<Long, Map<Long, BigDecimal>> weightsByEvent = new HashMap<>();
+    // Этап приростов: отправленные, но не подтверждённые приросты пачек. Повторно доставленная пачка приростов
+    // уже не даёт, поэтому они отправляются ещё раз вместе со следующей пачкой
+    List<List<AggregationDeltasAvro>> uncommittedDeltas = new CopyOnWriteArrayList<>();
 
-    // Суммарные веса событий
-    Map<Long, BigDecimal> eventSums = new HashMap<>();
+    public UserActionService(KafkaTemplate<String, SpecificRecordBase> kafkaTemplate, CustomProperties customProperties,
+                             ShardedAggregationEngine aggregationEngine, MeterRegistry meterRegistry) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.customProperties = customProperties;
+        this.aggregationEngine = aggregationEngine;
+        this.sendTimer = Timer.builder("aggregator.similarity.send")
+                .description("Отправка оценок сходства до подтверждения всех сообщений пачки")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.emittedScores = Counter.builder("aggregator.similarity.emitted")
+                .description("Отправленные оценки сходства")
+                .register(meterRegistry);
+    }
 
-    // Минимальные веса между парами событий
-    Map<Long, Map<Long, BigDecimal>> minWeightSums = new HashMap<>();
+    // Пачка действий применяется целиком, после чего по каждой изменённой паре отправляется одна итоговая оценка.
+    // Метод возвращает управление после подтверждения отправки, чтобы смещения пачки коммитились только после неё
+    public void processUserActions(List<UserActionAvro> userActions) {
+        if (isDeltaStage()) {
+            sendDeltas(aggregationEngine.computeDeltas(userActions, scoringPartitions()));
+            trace(userActions, List.of());
+            return;
+        }
+        // Обновление весов и сумм в шардах, пересчёт сходства изменённых пар
+        List<SimilarityScore> scores = withUncommitted(aggregationEngine.process(userActions));
 
-    public void processUserAction(UserActionAvro userActionAvro) {
-        Long userId = userActionAvro.getUserId();
-        Long eventId = userActionAvro.getEventId();
-        BigDecimal oldWeight = BigDecimal.ZERO;
-        BigDecimal newWeight = customProperties.getAggregator().getWeights().ofUserAction(userActionAvro);
-        log.info("Обработка нового взаимодействия пользователя {} с событием {}, новый вес {}", userId, eventId, newWeight);
+        // Отправка похожих событий
+        sendSimilarity(scores);
+        trace(userActions, scores);
+    }
 
-        // Получение карт весов для текущего пользователя и события
-        Map<Long, BigDecimal> userWeights = weightsByUser.computeIfAbsent(userId, id -> new HashMap<>());
-        Map<Long, BigDecimal> eventWeights = weightsByEvent.computeIfAbsent(eventId, id -> new HashMap<>());
+    // Повторное применение действий, результаты которых уже отправлены до сбоя: состояние восстанавливается,
+    // оценки не отправляются, чтобы не дублировать зафиксированные сообщения
+    public void replayUserActions(List<UserActionAvro> userActions) {
+        if (isDeltaStage()) {
+            aggregationEngine.computeDeltas(userActions, scoringPartitions());
+            log.debug("Повторно применено {} действий, приросты не отправлены", userActions.size());
+            return;
+        }
+        int scores = aggregationEngine.process(userActions).size();
+        log.debug("Повторно применено {} действий, {} оценок сходства не отправлено", userActions.size(), scores);
+    }
+
+    // Этап оценки двухэтапного режима: приросты от этапа приростов применяются пачкой, как действия
+    public void processDeltas(List<AggregationDeltasAvro> deltas) {
+        sendSimilarity(withUncommitted(aggregationEngine.applyDeltas(deltas)));
+    }
+
+    public void replayDeltas(List<AggregationDeltasAvro> deltas) {
+        int scores = aggregationEngine.applyDeltas(deltas).size();
+        log.debug("Повторно применено {} пачек приростов, {} оценок сходства не отправлено", deltas.size(), scores);
+    }
 
-        // Проверка наличия ранее зарегистрированного веса
-        if (userWeights.containsKey(eventId)) {
-            oldWeight = userWeights.get(eventId);
-            if (newWeight.compareTo(oldWeight) <= 0) { // Если новый вес меньше старого, игнорируем изменение
-                log.info("Вес {} меньше или равен предыдущему значению {}, обновление не требуется.", newWeight, oldWeight);
-                return;
+    // Есть ли отправленные, но не подтверждённые оценки или приросты: пока они есть, снимок состояния опережал бы выход
+    public boolean hasUncommittedScores() {
+        return !uncommittedPairs.isEmpty() || !uncommittedDeltas.isEmpty();
+    }
+
+    // Отправка готовых оценок, например итоговых после перестроения состояния
+    public void sendScores(List<SimilarityScore> scores) {
+        sendSimilarity(withUncommitted(scores));
+        log.info("Отправлено {} оценок сходства", scores.size());
+    }
+
+    // Очистка затухших взаимодействий; изменившиеся оценки отправляются так же, как после пачки действий
+    @Scheduled(fixedDelayString = "#{customProperties.aggregator.decay.sweepInterval.toMillis()}")
+    public void sweepDecayedWeights() {
+        if (!customProperties.getAggregator().getDecay().isEnabled()) return;
+        List<SimilarityScore> scores = withUncommitted(aggregationEngine.sweepDecayed());
+        aggregationEngine.rebaseIfDue();
+        sendSimilarity(scores);
+        log.info("Очистка затухших взаимодействий завершена, отправлено {} оценок сходства, состояние {}",
+                scores.size(), aggregationEngine.stateSize());
+    }
+
+    // Отправляет оценки и ждёт подтверждения всех сообщений
+    private void sendSimilarity(List<SimilarityScore> scores) {
+        if (scores.isEmpty()) return;
+        long startNanos = System.nanoTime();
+        Set<EventPair> pairs = new HashSet<>(scores.size());
+        for (SimilarityScore score : scores) {
+            pairs.add(new EventPair(score.eventA(), score.eventB()));
+        }
+        uncommittedPairs.addAll(pairs);
+        sendConfirmed(operations -> send(operations, scores), () -> uncommittedPairs.removeAll(pairs));
+        sendTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        emittedScores.increment(scores.size());
+    }
+
+    // Приросты пачки отправляются в партиции этапа оценки (элемент списка - партиция) вместе с неподтверждёнными.
+    // Неподтверждённые пачки сравниваются по ссылке: пачки с одинаковыми приростами различны
+    private void sendDeltas(List<AggregationDeltasAvro> deltas) {
+        if (!deltas.isEmpty()) uncommittedDeltas.add(deltas);
+        if (uncommittedDeltas.isEmpty()) return;
+        List<List<AggregationDeltasAvro>> pending = new ArrayList<>(uncommittedDeltas);
+        String topic = customProperties.getKafka().getAggregationDeltasTopic();
+        sendConfirmed(operations -> {
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            for (List<AggregationDeltasAvro> batch : pending) {
+                for (int partition = 0; partition < batch.size(); partition++) {
+                    futures.add(operations.send(topic, partition, null, batch.get(partition)));
+                }
             }
-            log.info("Новое значение веса больше предыдущего: {}, заменяем на {}.", oldWeight, newWeight);
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        }, () -> uncommittedDeltas.removeIf(batch -> pending.stream().anyMatch(sent -> sent == batch)));
+    }
+
+    // Отправка с подтверждением: confirmed вызывается, когда отправленное подтверждено брокером,
+    // а в транзакционном режиме - когда транзакция зафиксирована. В транзакционном режиме отправка внутри
+    // слушателя входит в транзакцию контейнера вместе со смещениями пачки, вне слушателя выполняется в отдельной
+    private void sendConfirmed(Consumer<KafkaOperations<String, SpecificRecordBase>> send, Runnable confirmed) {
+        if (!kafkaTemplate.isTransactional()) {
+            send.accept(kafkaTemplate);
+            confirmed.run();
+        } else if (kafkaTemplate.inTransaction()) {
+            send.accept(kafkaTemplate);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_COMMITTED) confirmed.run();
+                }
+            });
         } else {
-            log.info("Первое взаимодействие пользователя {} и события {}, обновляем вес до {}.", userId, eventId, newWeight);
+            kafkaTemplate.executeInTransaction(operations -> {
+                send.accept(operations);
+                return null;
+            });
+            confirmed.run();
         }
+    }
 
-        // Обновление весов
-        userWeights.put(eventId, newWeight);
-        eventWeights.put(userId, newWeight);
+    private boolean isDeltaStage() {
+        return customProperties.getAggregator().getTopology().getStage() == AggregationStage.DELTAS;
+    }
 
-        // Пересчёт суммарного веса события
-        recountEventSum(eventId, oldWeight, newWeight);
+    private int scoringPartitions() {
+        return customProperties.getAggregator().getTopology().getScoringPartitions();
+    }
 
-        // Выбор алгоритма пересчёта минимума весов
-        if ("naive".equalsIgnoreCase(customProperties.getAggregator().getMinimumSumAlgorithm())) {
-            recountEventMinWeightsNaive(userId, eventId);
-        } else {
-            recountEventMinWeightsOptimized(userId, eventId, oldWeight, newWeight);
+    private void send(KafkaOperations<String, SpecificRecordBase> operations, List<SimilarityScore> scores) {
+        if (customProperties.getKafka().isBatchEnvelopes()) {
+            sendEnvelopes(operations, scores);
+            return;
         }
-
-        // Отправка похожих событий
-        sendSimilarity(userId, eventId);
-    }
-
-    private void sendSimilarity(Long userId, Long eventId) {
-        for (Long anotherEventId : weightsByUser.get(userId).keySet()) {
-            if (!Objects.equals(eventId, anotherEventId)) {
-                long first = Math.min(eventId, anotherEventId);
-                long second = Math.max(eventId, anotherEventId);
-                double numerator = minWeightSums.get(first).get(second).doubleValue();
-                double sqrt1 = Math.sqrt(eventSums.get(first).doubleValue());
-                double sqrt2 = Math.sqrt(eventSums.get(second).doubleValue());
-                double denominator = sqrt1 * sqrt2;
-                double similarity = numerator / denominator;
-                EventSimilarityAvro eventSimilarityAvro = EventSimilarityAvro.newBuilder()
-                        .setEventA(first)
-                        .setEventB(second)
-                        .setScore(similarity)
-                        .setTimestamp(Instant.now())
-                        .build();
-                kafkaTemplate.send(customProperties.getKafka().getEventsSimilarityTopic(), eventSimilarityAvro);
-                log.info("Сообщение о схожести событий отправлено: {}", eventSimilarityAvro);
-            }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[scores.size()];
+        int i = 0;
+        for (SimilarityScore score : scores) {
+            futures[i++] = operations.send(customProperties.getKafka().getEventsSimilarityTopic(),
+                    pairKey(score.eventA(), score.eventB()), toAvro(score));
         }
+        CompletableFuture.allOf(futures).join();
     }
 
-    private void recountEventSum(Long eventId, BigDecimal oldWeight, BigDecimal newWeight) {
-        BigDecimal delta = newWeight.subtract(oldWeight);
-        BigDecimal prevSum = eventSums.get(eventId);
-        eventSums.merge(eventId, delta, BigDecimal::add);
-        log.info("Сумма весов для события {} пересчитана: {} + {} = {}", eventId, prevSum, delta, eventSums.get(eventId));
-    }
-
-    private void recountEventMinWeightsNaive(Long userId, Long eventId) {
-        for (Long secondEventId : weightsByUser.get(userId).keySet()) {
-            if (!Objects.equals(secondEventId, eventId)) {
-                Map<Long, BigDecimal> eventWeights1 = weightsByEvent.get(eventId);
-                Map<Long, BigDecimal> eventWeights2 = weightsByEvent.get(secondEventId);
-                Set<Long> commonUsers = new HashSet<>(eventWeights1.keySet());
-                commonUsers.retainAll(eventWeights2.keySet());
-                BigDecimal sum = commonUsers.stream()
-                        .map(id -> eventWeights1.get(id).min(eventWeights2.get(id)))
-                        .reduce(BigDecimal.ZERO, BigDecimal::add);
-                Long first = Math.min(eventId, secondEventId);
-                Long second = Math.max(eventId, secondEventId);
-                minWeightSums.computeIfAbsent(first, k -> new HashMap<>()).put(second, sum);
-                log.info("Минимальные веса для событий {} и {} пересчитаны: {}", first, second, sum);
+    // Оценки делятся по партициям, в которые попали бы отдельные записи с ключом пары, поэтому все обновления
+    // пары остаются в одной партиции и при переключении режима. В конверте не больше MAX_ENVELOPE_SIZE оценок
+    private void sendEnvelopes(KafkaOperations<String, SpecificRecordBase> operations, List<SimilarityScore> scores) {
+        String topic = customProperties.getKafka().getEventsSimilarityTopic();
+        int partitions = operations.partitionsFor(topic).size();
+        Map<Integer, List<EventSimilarityAvro>> byPartition = new HashMap<>();
+        for (SimilarityScore score : scores) {
+            byPartition.computeIfAbsent(partitionOf(pairKey(score.eventA(), score.eventB()), partitions),
+                    partition -> new ArrayList<>()).add(toAvro(score));
+        }
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        byPartition.forEach((partition, similarities) -> {
+            similarities.sort(Comparator.comparingLong(EventSimilarityAvro::getEventA)
+                    .thenComparingLong(EventSimilarityAvro::getEventB));
+            for (int from = 0; from < similarities.size(); from += MAX_ENVELOPE_SIZE) {
+                EventSimilarityBatchAvro batch = AvroBatches.encodeSimilarities(
+                        similarities.subList(from, Math.min(similarities.size(), from + MAX_ENVELOPE_SIZE)));
+                futures.add(operations.send(new ProducerRecord<String, SpecificRecordBase>(topic, partition, null, batch,
+                        AvroBatches.headers(batch))));
             }
+        });
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+    }
+
+    private static EventSimilarityAvro toAvro(SimilarityScore score) {
+        return EventSimilarityAvro.newBuilder()
+                .setEventA(score.eventA())
+                .setEventB(score.eventB())
+                .setScore(score.score())
+                .setTimestamp(Instant.now())
+                .build();
+    }
+
+    // Партиция записи с ключом key при разбиении по умолчанию (murmur2 от байтов ключа)
+    static int partitionOf(String key, int partitions) {
+        return Utils.toPositive(Utils.murmur2(key.getBytes(StandardCharsets.UTF_8))) % partitions;
+    }
+
+    // Ключ записи - пара событий: обновления одной пары попадают в одну партицию и читаются по порядку,
+    // а анализатор может делить состояние между потребителями по партициям
+    static String pairKey(long eventA, long eventB) {
+        return eventA + ":" + eventB;
+    }
+
+    // Дополняет оценки текущими оценками неподтверждённых пар
+    private List<SimilarityScore> withUncommitted(List<SimilarityScore> scores) {
+        if (uncommittedPairs.isEmpty()) return scores;
+        Set<EventPair> missing = new HashSet<>(uncommittedPairs);
+        for (SimilarityScore score : scores) {
+            missing.remove(new EventPair(score.eventA(), score.eventB()));
+        }
+        List<SimilarityScore> result = new ArrayList<>(scores.size() + missing.size());
+        result.addAll(scores);
+        for (EventPair pair : missing) {
+            result.add(new SimilarityScore(pair.eventA(), pair.eventB(), aggregationEngine.score(pair.eventA(), pair.eventB())));
         }
+        log.info("К отправке добавлено {} неподтверждённых ранее оценок сходства", missing.size());
+        return result;
     }
 
-    private void recountEventMinWeightsOptimized(Long userId, Long eventId, BigDecimal oldWeight, BigDecimal newWeight) {
-        for (Map.Entry<Long, BigDecimal> anotherEventEntry : weightsByUser.get(userId).entrySet()) {
-            if (!Objects.equals(eventId, anotherEventEntry.getKey())) {
-                Long first = Math.min(eventId, anotherEventEntry.getKey());
-                Long second = Math.max(eventId, anotherEventEntry.getKey());
-                Map<Long, BigDecimal> firstEventSums = minWeightSums.computeIfAbsent(first, k -> new HashMap<>());
-                BigDecimal oldSum = firstEventSums.getOrDefault(second, BigDecimal.ZERO);
-                BigDecimal oldMinimum = oldWeight.min(anotherEventEntry.getValue());
-                BigDecimal newMinimum = newWeight.min(anotherEventEntry.getValue());
-                BigDecimal newSum = oldSum.subtract(oldMinimum).add(newMinimum);
-                firstEventSums.put(second, newSum);
-                log.info("Оптимизированный пересчёт минимальных весов для событий {} и {}: {}", first, second, newSum);
-            }
+    // Выборочная отладочная трассировка вместо журналирования каждого действия:
+    // в журнал попадает каждое sampleEvery-е действие вместе с итогом его пачки
+    private void trace(List<UserActionAvro> userActions, List<SimilarityScore> scores) {
+        int sampleEvery = customProperties.getAggregator().getTrace().getSampleEvery();
+        if (sampleEvery <= 0 || !log.isDebugEnabled()) return;
+        long before = tracedActions.getAndAdd(userActions.size());
+        long offset = (sampleEvery - before % sampleEvery) % sampleEvery;
+        for (long i = offset; i < userActions.size(); i += sampleEvery) {
+            log.debug("Действие {} обработано в пачке из {} действий, отправлено {} оценок сходства",
+                    userActions.get((int) i), userActions.size(), scores.size());
         }
     }
-}
\ No newline at end of file
+
+    private record EventPair(long eventA, long eventB) {
+    }
+}
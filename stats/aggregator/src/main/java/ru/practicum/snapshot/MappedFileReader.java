@@ -0,0 +1,62 @@
+package ru.practicum.snapshot;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Последовательное чтение файла через отображение в память окнами
+class MappedFileReader implements Closeable {
+
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    MappedFileReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.window = map(0);
+    }
+
+    int getInt() throws IOException {
+        return ensureRemaining(Integer.BYTES).getInt();
+    }
+
+    long getLong() throws IOException {
+        return ensureRemaining(Long.BYTES).getLong();
+    }
+
+    byte[] getBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = ensureRemaining(1).get();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private MappedByteBuffer ensureRemaining(int bytes) throws IOException {
+        if (window.remaining() < bytes) {
+            long position = windowStart + window.position();
+            if (size - position < bytes) throw new EOFException("Снимок обрезан на позиции " + position);
+            window = map(position);
+        }
+        return window;
+    }
+
+    private MappedByteBuffer map(long position) throws IOException {
+        windowStart = position;
+        long length = Math.min(WINDOW_SIZE, size - position);
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+}
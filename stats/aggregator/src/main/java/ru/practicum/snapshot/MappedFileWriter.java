@@ -0,0 +1,66 @@
+package ru.practicum.snapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Последовательная запись в файл заранее известного размера через отображение в память окнами
+class MappedFileWriter implements Closeable {
+
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    MappedFileWriter(Path path, long size) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = size;
+        this.windowStart = 0;
+        this.window = map(0);
+    }
+
+    void putInt(int value) throws IOException {
+        ensureRemaining(Integer.BYTES).putInt(value);
+    }
+
+    void putLong(long value) throws IOException {
+        ensureRemaining(Long.BYTES).putLong(value);
+    }
+
+    void putBytes(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            ensureRemaining(1).put(b);
+        }
+    }
+
+    // Сбрасывает записанное на диск; без этого переименование файла не гарантирует его целостность
+    void force() throws IOException {
+        window.force();
+        channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private MappedByteBuffer ensureRemaining(int bytes) throws IOException {
+        if (window.remaining() < bytes) {
+            window.force();
+            window = map(windowStart + window.position());
+        }
+        return window;
+    }
+
+    private MappedByteBuffer map(long position) throws IOException {
+        windowStart = position;
+        long length = Math.min(WINDOW_SIZE, size - position);
+        return channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+    }
+}
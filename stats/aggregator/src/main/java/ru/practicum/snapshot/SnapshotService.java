@@ -0,0 +1,197 @@
+package ru.practicum.snapshot;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.practicum.engine.ShardedAggregationEngine;
+import ru.practicum.engine.StateSize;
+import ru.practicum.engine.StateVisitor;
+import ru.practicum.properties.CustomProperties;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+// Снимки состояния агрегатора. Снимок содержит веса взаимодействий, суммы весов событий, суммы минимальных
+// весов пар и смещения партиций темы действий, до которых (не включая) действия уже учтены в состоянии.
+// Снимок пишется во временный файл и атомарно переименовывается, поэтому на диске всегда лежит целый снимок.
+// Формат (big-endian): MAGIC, VERSION, время создания, эпоха и водяной знак затухания, тема, смещения партиций, количества записей трёх разделов,
+// сами разделы, MAGIC.
+@Slf4j
+@Service
+public class SnapshotService {
+
+    private static final long MAGIC = 0x4147_4752_534E_4150L; // "AGGRSNAP"
+    private static final int VERSION = 2;
+
+    private final ShardedAggregationEngine engine;
+    private final CustomProperties.Snapshot properties;
+    private final String topic;
+    private long lastSnapshotNanos = System.nanoTime();
+
+    public SnapshotService(ShardedAggregationEngine engine, CustomProperties customProperties) {
+        this.engine = engine;
+        this.properties = customProperties.getAggregator().getSnapshot();
+        this.topic = customProperties.getKafka().getUserActionTopic();
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    // Пишет снимок, если с предыдущего прошло больше заданного интервала; вызывается между пачками
+    public void snapshotIfDue(Map<Integer, Long> offsets) {
+        if (!properties.isEnabled() || offsets.isEmpty()) return;
+        if (System.nanoTime() - lastSnapshotNanos < properties.getInterval().toNanos()) return;
+        snapshot(offsets);
+    }
+
+    public void snapshot(Map<Integer, Long> offsets) {
+        if (!properties.isEnabled()) return;
+        lastSnapshotNanos = System.nanoTime();
+        Path path = Path.of(properties.getPath());
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        // Размер и содержимое снимаются под одной блокировкой агрегатора, чтобы пачка не вклинилась между ними
+        synchronized (engine) {
+            writeSnapshot(path, tempPath, Map.copyOf(offsets));
+        }
+    }
+
+    private void writeSnapshot(Path path, Path tempPath, Map<Integer, Long> offsets) {
+        StateSize stateSize = engine.stateSize();
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        long size = 8L + 4 + 8 + 16 + 4 + topicBytes.length + 4 + offsets.size() * 12L
+                + 3 * 8 + stateSize.userWeights() * 24 + stateSize.eventSums() * 16
+                + stateSize.minWeightSums() * 24 + 8;
+        try {
+            if (path.getParent() != null) Files.createDirectories(path.getParent());
+            try (MappedFileWriter writer = new MappedFileWriter(tempPath, size)) {
+                writer.putLong(MAGIC);
+                writer.putInt(VERSION);
+                writer.putLong(System.currentTimeMillis());
+                writer.putLong(engine.decay() == null ? Long.MIN_VALUE : engine.decay().epochMillis());
+                writer.putLong(engine.decay() == null ? Long.MIN_VALUE : engine.decay().watermarkMillis());
+                writer.putInt(topicBytes.length);
+                writer.putBytes(topicBytes);
+                writer.putInt(offsets.size());
+                for (Map.Entry<Integer, Long> offset : offsets.entrySet()) {
+                    writer.putInt(offset.getKey());
+                    writer.putLong(offset.getValue());
+                }
+                writeState(writer, stateSize);
+                writer.putLong(MAGIC);
+                writer.force();
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Снимок состояния записан в {}: {} байт, смещения {}, длительность {} мс", path, size, offsets,
+                    (System.nanoTime() - lastSnapshotNanos) / 1_000_000);
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Не удалось записать снимок состояния в {}", path, e);
+        }
+    }
+
+    // Загружает снимок в агрегатор и возвращает смещения, с которых нужно продолжить чтение.
+    // Если снимка нет или он непригоден, состояние остаётся пустым и возвращается пустая карта
+    public Map<Integer, Long> restore() {
+        if (!properties.isEnabled()) return Map.of();
+        Path path = Path.of(properties.getPath());
+        long startNanos = System.nanoTime();
+        try (MappedFileReader reader = new MappedFileReader(path)) {
+            if (reader.getLong() != MAGIC || reader.getInt() != VERSION) {
+                log.warn("Файл {} не является снимком состояния агрегатора, снимок не загружен", path);
+                return Map.of();
+            }
+            long createdAt = reader.getLong();
+            long decayEpoch = reader.getLong();
+            long decayWatermark = reader.getLong();
+            if ((decayEpoch != Long.MIN_VALUE) != (engine.decay() != null)) {
+                log.warn("Снимок {} сделан с другим режимом затухания весов, снимок не загружен", path);
+                return Map.of();
+            }
+            String snapshotTopic = new String(reader.getBytes(reader.getInt()), StandardCharsets.UTF_8);
+            if (!topic.equals(snapshotTopic)) {
+                log.warn("Снимок {} сделан для темы {}, а не {}, снимок не загружен", path, snapshotTopic, topic);
+                return Map.of();
+            }
+            Map<Integer, Long> offsets = new HashMap<>();
+            int partitions = reader.getInt();
+            for (int i = 0; i < partitions; i++) {
+                offsets.put(reader.getInt(), reader.getLong());
+            }
+            engine.importState(decayEpoch, decayWatermark, visitor -> readState(reader, visitor));
+            if (reader.getLong() != MAGIC) {
+                engine.importState(Long.MIN_VALUE, Long.MIN_VALUE, visitor -> { });
+                log.warn("Снимок {} повреждён, снимок не загружен", path);
+                return Map.of();
+            }
+            log.info("Загружен снимок состояния {} от {}: {}, смещения {}, длительность {} мс", path,
+                    Instant.ofEpochMilli(createdAt), engine.stateSize(), offsets,
+                    (System.nanoTime() - startNanos) / 1_000_000);
+            return offsets;
+        } catch (NoSuchFileException e) {
+            log.info("Снимок состояния {} не найден, агрегатор стартует с пустым состоянием", path);
+            return Map.of();
+        } catch (IOException | UncheckedIOException e) {
+            engine.importState(Long.MIN_VALUE, Long.MIN_VALUE, visitor -> { });
+            log.error("Не удалось загрузить снимок состояния {}", path, e);
+            return Map.of();
+        }
+    }
+
+    private void writeState(MappedFileWriter writer, StateSize stateSize) throws IOException {
+        writer.putLong(stateSize.userWeights());
+        writer.putLong(stateSize.eventSums());
+        writer.putLong(stateSize.minWeightSums());
+        engine.exportState(new StateVisitor() {
+            @Override
+            public void userWeight(long userId, long eventId, long weight) {
+                put(writer, userId, eventId, weight);
+            }
+
+            @Override
+            public void eventSum(long eventId, long sum) {
+                put(writer, eventId, sum);
+            }
+
+            @Override
+            public void minWeightSum(long first, long second, long sum) {
+                put(writer, first, second, sum);
+            }
+        });
+    }
+
+    private static void readState(MappedFileReader reader, StateVisitor visitor) {
+        try {
+            long userWeights = reader.getLong();
+            long eventSums = reader.getLong();
+            long minWeightSums = reader.getLong();
+            for (long i = 0; i < userWeights; i++) {
+                visitor.userWeight(reader.getLong(), reader.getLong(), reader.getLong());
+            }
+            for (long i = 0; i < eventSums; i++) {
+                visitor.eventSum(reader.getLong(), reader.getLong());
+            }
+            for (long i = 0; i < minWeightSums; i++) {
+                visitor.minWeightSum(reader.getLong(), reader.getLong(), reader.getLong());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void put(MappedFileWriter writer, long... values) {
+        try {
+            for (long value : values) {
+                writer.putLong(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ru.practicum.state;
+
+import ru.practicum.state.LongLongHashMap.LongLongConsumer;
+
+// Разреженная матрица row -> col -> value с примитивными ключами и значениями
+public interface InteractionMatrix {
+
+    boolean contains(long row, long col);
+
+    long get(long row, long col, long defaultValue);
+
+    void put(long row, long col, long value);
+
+    // Прибавляет delta к ячейке и возвращает её новое значение
+    long add(long row, long col, long delta);
+
+    boolean remove(long row, long col);
+
+    void forEachInRow(long row, LongLongConsumer consumer);
+
+    void forEach(EntryConsumer consumer);
+
+    void clear();
+
+    int rowSize(long row);
+
+    int rowCount();
+
+    long size();
+
+    long estimatedSizeInBytes();
+
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(long row, long col, long value);
+    }
+}
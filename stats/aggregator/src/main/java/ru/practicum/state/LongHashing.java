@@ -0,0 +1,16 @@
+package ru.practicum.state;
+
+final class LongHashing {
+
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+    private LongHashing() {
+    }
+
+    // Перемешивание битов ключа, чтобы последовательные идентификаторы не собирались в одну цепочку
+    static int mix(long key) {
+        long h = key * GOLDEN_RATIO;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+}
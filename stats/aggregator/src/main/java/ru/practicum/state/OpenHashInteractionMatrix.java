@@ -0,0 +1,88 @@
+package ru.practicum.state;
+
+import ru.practicum.state.LongLongHashMap.LongLongConsumer;
+
+// Матрица на хеш-таблицах с открытой адресацией: строка - LongLongHashMap, индекс строк - LongObjectHashMap
+public class OpenHashInteractionMatrix implements InteractionMatrix {
+
+    private final LongObjectHashMap<LongLongHashMap> rows = new LongObjectHashMap<>();
+    private long size;
+
+    @Override
+    public boolean contains(long row, long col) {
+        LongLongHashMap cols = rows.get(row);
+        return cols != null && cols.containsKey(col);
+    }
+
+    @Override
+    public long get(long row, long col, long defaultValue) {
+        LongLongHashMap cols = rows.get(row);
+        return cols == null ? defaultValue : cols.getOrDefault(col, defaultValue);
+    }
+
+    @Override
+    public void put(long row, long col, long value) {
+        LongLongHashMap cols = rows.computeIfAbsent(row, r -> new LongLongHashMap());
+        int before = cols.size();
+        cols.put(col, value);
+        size += cols.size() - before;
+    }
+
+    @Override
+    public long add(long row, long col, long delta) {
+        LongLongHashMap cols = rows.computeIfAbsent(row, r -> new LongLongHashMap());
+        int before = cols.size();
+        long value = cols.addTo(col, delta);
+        size += cols.size() - before;
+        return value;
+    }
+
+    @Override
+    public boolean remove(long row, long col) {
+        LongLongHashMap cols = rows.get(row);
+        if (cols == null || !cols.remove(col)) return false;
+        size--;
+        if (cols.isEmpty()) rows.remove(row);
+        return true;
+    }
+
+    @Override
+    public void forEachInRow(long row, LongLongConsumer consumer) {
+        LongLongHashMap cols = rows.get(row);
+        if (cols != null) cols.forEach(consumer);
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        rows.forEach((row, cols) -> cols.forEach((col, value) -> consumer.accept(row, col, value)));
+    }
+
+    @Override
+    public void clear() {
+        rows.clear();
+        size = 0;
+    }
+
+    @Override
+    public int rowSize(long row) {
+        LongLongHashMap cols = rows.get(row);
+        return cols == null ? 0 : cols.size();
+    }
+
+    @Override
+    public int rowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long estimatedSizeInBytes() {
+        long[] total = {rows.estimatedSizeInBytes()};
+        rows.forEach((row, cols) -> total[0] += cols.estimatedSizeInBytes());
+        return total[0];
+    }
+}
@@ -0,0 +1,446 @@
+package ru.practicum.state;
+
+import ru.practicum.state.LongLongHashMap.LongLongConsumer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Двухуровневая матрица: горячие строки в памяти (не больше maxHotRows), холодные - в локальном файле.
+// Строка вытесняется целиком по алгоритму CLOCK и дописывается в конец файла с сортировкой по столбцам,
+// индекс хранит смещение записи строки. Изменение холодной строки сначала поднимает её в память;
+// чтение холодной строки идёт через отображение файла в память (get - двоичным поиском по записи) без
+// системных вызовов и выделения памяти и горячий уровень не меняет, поэтому читать матрицу из нескольких
+// потоков можно, пока её никто не изменяет.
+// Файл - кеш текущего процесса и при открытии очищается; когда мёртвые записи занимают больше половины,
+// файл перезаписывается. Изменять матрицу может только один поток.
+public class TieredInteractionMatrix implements InteractionMatrix, AutoCloseable {
+
+    // Запись строки: row (long), count (int), затем count пар (col, value) по возрастанию col
+    private static final int HEADER_BYTES = Long.BYTES + Integer.BYTES;
+    private static final int ENTRY_BYTES = 2 * Long.BYTES;
+    private static final long DEFAULT_MIN_COMPACTION_BYTES = 64L << 20;
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final OpenHashInteractionMatrix hot = new OpenHashInteractionMatrix();
+    private final int maxHotRows;
+    private final long minCompactionBytes;
+    private final Path path;
+    private FileChannel file;
+    private long fileSize;
+    private long liveBytes;
+
+    // Холодные строки: смещение записи в файле
+    private final LongLongHashMap coldIndex = new LongLongHashMap();
+    private long coldEntries;
+
+    // Отображение файла частями по 2^CHUNK_SHIFT байт; часть захватывает ещё Long.BYTES байт следующей,
+    // поэтому любое число записи читается из одной части. Часть отображается целиком при первом чтении из неё
+    // (файл при этом разреженно дорастает до её конца) и при росте файла не переотображается: дописанные
+    // записи видны через то же отображение. Гонка читающих потоков безопасна, каждый публикует верное
+    // отображение. Владелец сбрасывает отображения только при усечении и перезаписи файла
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    // CLOCK: слоты горячих строк с битом обращения, стрелка и стек свободных слотов
+    private final LongLongHashMap slotOfRow = new LongLongHashMap();
+    private final long[] slotRows;
+    private final boolean[] slotReferenced;
+    private final boolean[] slotUsed;
+    private final int[] freeSlots;
+    private int freeSlotCount;
+    private int hand;
+
+    // Статистика обращений к строкам при изменении: попадания в память и подъёмы из файла.
+    // Пишется только владельцем, читается метриками без синхронизации
+    private long hits;
+    private long faults;
+    private long faultNanos;
+    private long spills;
+
+    // Статистика чтений: из памяти и из файла без подъёма. Чтения из нескольких потоков могут терять
+    // приращения - счётчики приблизительные, зато не замедляют горячий путь
+    private long readHits;
+    private long coldReads;
+
+    public TieredInteractionMatrix(int maxHotRows, Path path) {
+        this(maxHotRows, path, DEFAULT_MIN_COMPACTION_BYTES);
+    }
+
+    TieredInteractionMatrix(int maxHotRows, Path path, long minCompactionBytes) {
+        if (maxHotRows < 1) throw new IllegalArgumentException("Горячий уровень должен вмещать хотя бы одну строку");
+        this.maxHotRows = maxHotRows;
+        this.minCompactionBytes = minCompactionBytes;
+        this.path = path;
+        this.slotRows = new long[maxHotRows + 1];
+        this.slotReferenced = new boolean[maxHotRows + 1];
+        this.slotUsed = new boolean[maxHotRows + 1];
+        this.freeSlots = new int[maxHotRows + 1];
+        for (int i = maxHotRows; i >= 0; i--) {
+            freeSlots[freeSlotCount++] = i;
+        }
+        try {
+            if (path.getParent() != null) Files.createDirectories(path.getParent());
+            this.file = open(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean contains(long row, long col) {
+        long offset = coldIndex.getOrDefault(row, -1L);
+        if (offset < 0) {
+            readHits++;
+            return hot.contains(row, col);
+        }
+        coldReads++;
+        return findCold(offset, col) >= 0;
+    }
+
+    @Override
+    public long get(long row, long col, long defaultValue) {
+        long offset = coldIndex.getOrDefault(row, -1L);
+        if (offset < 0) {
+            readHits++;
+            return hot.get(row, col, defaultValue);
+        }
+        coldReads++;
+        long entry = findCold(offset, col);
+        return entry < 0 ? defaultValue : getLong(entry + Long.BYTES);
+    }
+
+    @Override
+    public void put(long row, long col, long value) {
+        touch(row);
+        hot.put(row, col, value);
+        afterWrite(row);
+    }
+
+    @Override
+    public long add(long row, long col, long delta) {
+        touch(row);
+        long value = hot.add(row, col, delta);
+        afterWrite(row);
+        return value;
+    }
+
+    @Override
+    public boolean remove(long row, long col) {
+        if (!contains(row, col)) return false;
+        touch(row);
+        hot.remove(row, col);
+        afterWrite(row);
+        return true;
+    }
+
+    @Override
+    public void forEachInRow(long row, LongLongConsumer consumer) {
+        long offset = coldIndex.getOrDefault(row, -1L);
+        if (offset < 0) {
+            readHits++;
+            hot.forEachInRow(row, consumer);
+            return;
+        }
+        coldReads++;
+        int count = getInt(offset + Long.BYTES);
+        for (int i = 0; i < count; i++) {
+            long position = offset + HEADER_BYTES + (long) i * ENTRY_BYTES;
+            consumer.accept(getLong(position), getLong(position + Long.BYTES));
+        }
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        hot.forEach(consumer);
+        coldIndex.forEach((row, offset) -> forEachInRow(row, (col, value) -> consumer.accept(row, col, value)));
+    }
+
+    @Override
+    public void clear() {
+        hot.clear();
+        coldIndex.clear();
+        coldEntries = 0;
+        slotOfRow.clear();
+        Arrays.fill(slotUsed, false);
+        freeSlotCount = 0;
+        for (int i = maxHotRows; i >= 0; i--) {
+            freeSlots[freeSlotCount++] = i;
+        }
+        chunks = new MappedByteBuffer[0];
+        try {
+            file.truncate(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fileSize = 0;
+        liveBytes = 0;
+    }
+
+    @Override
+    public int rowSize(long row) {
+        long offset = coldIndex.getOrDefault(row, -1L);
+        if (offset < 0) {
+            readHits++;
+            return hot.rowSize(row);
+        }
+        coldReads++;
+        return getInt(offset + Long.BYTES);
+    }
+
+    @Override
+    public int rowCount() {
+        return hot.rowCount() + coldIndex.size();
+    }
+
+    @Override
+    public long size() {
+        return hot.size() + coldEntries;
+    }
+
+    // Оценка занимаемой памяти: горячий уровень, индекс холодных строк и структуры CLOCK
+    @Override
+    public long estimatedSizeInBytes() {
+        return hot.estimatedSizeInBytes() + coldIndex.estimatedSizeInBytes() + slotOfRow.estimatedSizeInBytes()
+                + slotRows.length * (Long.BYTES + 2L + Integer.BYTES);
+    }
+
+    public int hotRowCount() {
+        return hot.rowCount();
+    }
+
+    public int coldRowCount() {
+        return coldIndex.size();
+    }
+
+    public long fileSize() {
+        return fileSize;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long readHits() {
+        return readHits;
+    }
+
+    public long coldReads() {
+        return coldReads;
+    }
+
+    public long faults() {
+        return faults;
+    }
+
+    public long faultNanos() {
+        return faultNanos;
+    }
+
+    public long spills() {
+        return spills;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+        Files.deleteIfExists(path);
+    }
+
+    // Перед изменением строки: подъём холодной строки в память и отметка обращения
+    private void touch(long row) {
+        long offset = coldIndex.getOrDefault(row, -1L);
+        if (offset >= 0) {
+            long startNanos = System.nanoTime();
+            int count = getInt(offset + Long.BYTES);
+            for (int i = 0; i < count; i++) {
+                long position = offset + HEADER_BYTES + (long) i * ENTRY_BYTES;
+                hot.put(row, getLong(position), getLong(position + Long.BYTES));
+            }
+            coldIndex.remove(row);
+            coldEntries -= count;
+            liveBytes -= HEADER_BYTES + (long) count * ENTRY_BYTES;
+            faults++;
+            faultNanos += System.nanoTime() - startNanos;
+        } else if (hot.rowSize(row) > 0) {
+            hits++;
+        }
+        long slot = slotOfRow.getOrDefault(row, -1L);
+        if (slot >= 0) slotReferenced[(int) slot] = true;
+    }
+
+    // После изменения строки: учёт слота новой или опустевшей строки и вытеснение при переполнении
+    private void afterWrite(long row) {
+        long slot = slotOfRow.getOrDefault(row, -1L);
+        int size = hot.rowSize(row);
+        if (slot < 0 && size > 0) {
+            int newSlot = freeSlots[--freeSlotCount];
+            slotOfRow.put(row, newSlot);
+            slotRows[newSlot] = row;
+            slotUsed[newSlot] = true;
+            slotReferenced[newSlot] = true;
+        } else if (slot >= 0 && size == 0) {
+            releaseSlot(row, (int) slot);
+        }
+        while (hot.rowCount() > maxHotRows) {
+            spill(nextVictim(row));
+        }
+    }
+
+    // Стрелка CLOCK: строка со снятым битом обращения, только что изменённая строка не вытесняется
+    private long nextVictim(long protectedRow) {
+        while (true) {
+            hand = (hand + 1) % slotRows.length;
+            if (!slotUsed[hand] || slotRows[hand] == protectedRow) continue;
+            if (slotReferenced[hand]) {
+                slotReferenced[hand] = false;
+                continue;
+            }
+            return slotRows[hand];
+        }
+    }
+
+    private void spill(long row) {
+        int count = hot.rowSize(row);
+        long[] cols = new long[count];
+        int[] index = {0};
+        hot.forEachInRow(row, (col, value) -> cols[index[0]++] = col);
+        Arrays.sort(cols);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + count * ENTRY_BYTES);
+        record.putLong(row).putInt(count);
+        for (long col : cols) {
+            record.putLong(col).putLong(hot.get(row, col, 0L));
+        }
+        record.flip();
+        try {
+            long offset = fileSize;
+            while (record.hasRemaining()) {
+                fileSize += file.write(record, fileSize);
+            }
+            coldIndex.put(row, offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        liveBytes += record.limit();
+        coldEntries += count;
+        spills++;
+        releaseSlot(row, (int) slotOfRow.getOrDefault(row, -1L));
+        for (long col : cols) {
+            hot.remove(row, col);
+        }
+        if (fileSize > minCompactionBytes && fileSize > 2 * liveBytes) compact();
+    }
+
+    private void releaseSlot(long row, int slot) {
+        slotOfRow.remove(row);
+        slotUsed[slot] = false;
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    // Перезапись файла только с живыми записями
+    private void compact() {
+        Path compactedPath = path.resolveSibling(path.getFileName() + ".compacting");
+        try (FileChannel compacted = FileChannel.open(compactedPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long[] position = {0L};
+            LongLongHashMap newIndex = new LongLongHashMap(coldIndex.size());
+            coldIndex.forEach((row, offset) -> {
+                ByteBuffer record = readRecord(offset);
+                newIndex.put(row, position[0]);
+                try {
+                    while (record.hasRemaining()) {
+                        position[0] += compacted.write(record, position[0]);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            file.close();
+            chunks = new MappedByteBuffer[0];
+            Files.move(compactedPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            newIndex.forEach(coldIndex::put);
+            fileSize = position[0];
+            liveBytes = position[0];
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Двоичный поиск столбца в отсортированной записи холодной строки: позиция пары в файле или -1
+    private long findCold(long offset, long col) {
+        int count = getInt(offset + Long.BYTES);
+        long entries = offset + HEADER_BYTES;
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long entry = entries + (long) middle * ENTRY_BYTES;
+            long middleCol = getLong(entry);
+            if (middleCol < col) {
+                low = middle + 1;
+            } else if (middleCol > col) {
+                high = middle - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private long getLong(long position) {
+        return chunk(position).getLong((int) (position & CHUNK_MASK));
+    }
+
+    private int getInt(long position) {
+        return chunk(position).getInt((int) (position & CHUNK_MASK));
+    }
+
+    private MappedByteBuffer chunk(long position) {
+        int index = (int) (position >>> CHUNK_SHIFT);
+        MappedByteBuffer[] current = chunks;
+        if (index < current.length && current[index] != null) return current[index];
+        long start = (long) index << CHUNK_SHIFT;
+        try {
+            MappedByteBuffer chunk = file.map(FileChannel.MapMode.READ_ONLY, start, CHUNK_MASK + 1 + Long.BYTES);
+            MappedByteBuffer[] updated = Arrays.copyOf(current, Math.max(current.length, index + 1));
+            updated[index] = chunk;
+            chunks = updated;
+            return chunk;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Запись строки целиком; нужна только перезаписи файла
+    private ByteBuffer readRecord(long offset) {
+        int count = getInt(offset + Long.BYTES);
+        return read(offset, HEADER_BYTES + count * ENTRY_BYTES);
+    }
+
+    private ByteBuffer read(long position, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Файл " + path + " обрезан на позиции " + position);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.flip();
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,478 @@
+package ru.practicum.engine;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.practicum.ewm.stats.avro.ActionTypeAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CustomProperties;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardedAggregationEngineTest {
+
+    @Test
+    void singleShard_ShouldEmitSameScoresAsSequentialAlgorithmForEachAction() {
+        List<UserActionAvro> actions = generateActions(300, 60, 5_000, 1);
+        CustomProperties.Weights weights = new CustomProperties().getAggregator().getWeights();
+        ReferenceAggregator reference = new ReferenceAggregator(weights);
+        ShardedAggregationEngine engine = newEngine(1, "optimized");
+
+        for (UserActionAvro action : actions) {
+            Map<String, Double> expected = reference.process(action);
+            Map<String, Double> actual = toMap(engine.process(List.of(action)));
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    void shardedEngine_ShouldMatchSequentialAlgorithmForAnyBatching() {
+        List<UserActionAvro> actions = generateActions(500, 80, 20_000, 2);
+        CustomProperties.Weights weights = new CustomProperties().getAggregator().getWeights();
+
+        for (String algorithm : List.of("optimized", "naive")) {
+            ReferenceAggregator reference = new ReferenceAggregator(weights);
+            ShardedAggregationEngine engine = newEngine(4, algorithm);
+            Random random = new Random(3);
+            int from = 0;
+            while (from < actions.size()) {
+                int to = Math.min(actions.size(), from + 1 + random.nextInt(700));
+                // Пачка отправляет по одной итоговой оценке на каждую затронутую пару
+                Map<String, Double> expected = new HashMap<>();
+                actions.subList(from, to).forEach(action -> expected.putAll(reference.process(action)));
+                expected.replaceAll((pair, ignored) -> reference.score(pair));
+                assertEquals(expected, toMap(engine.process(actions.subList(from, to))), algorithm);
+                from = to;
+            }
+            for (Map.Entry<String, Double> entry : reference.scores().entrySet()) {
+                String[] pair = entry.getKey().split(":");
+                assertEquals(entry.getValue(), engine.score(Long.parseLong(pair[0]), Long.parseLong(pair[1])));
+            }
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    void rebuild_ShouldEmitOneFinalScorePerPair() {
+        List<UserActionAvro> actions = generateActions(500, 80, 20_000, 13);
+        CustomProperties.Weights weights = new CustomProperties().getAggregator().getWeights();
+        for (String algorithm : List.of("optimized", "naive")) {
+            ReferenceAggregator reference = new ReferenceAggregator(weights);
+            actions.forEach(reference::process);
+            ShardedAggregationEngine engine = newEngine(4, algorithm);
+            for (int from = 0; from < actions.size(); from += 3_000) {
+                engine.applyWithoutScoring(actions.subList(from, Math.min(actions.size(), from + 3_000)));
+            }
+            assertEquals(reference.scores(), toMap(engine.scoreTouchedPairs()), algorithm);
+            assertEquals(List.of(), engine.scoreTouchedPairs());
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    void boundedEngine_ShouldKeepPairsProportionalToEventsAndEmitExactScores() {
+        int events = 300;
+        List<UserActionAvro> actions = generateActions(2_000, events, 40_000, 4);
+        CustomProperties.Weights weights = new CustomProperties().getAggregator().getWeights();
+        ReferenceAggregator reference = new ReferenceAggregator(weights);
+        CustomProperties customProperties = newProperties(4, "optimized");
+        CustomProperties.TopK topK = customProperties.getAggregator().getTopK();
+        topK.setEnabled(true);
+        topK.setSize(5);
+        topK.setCandidates(5);
+        ShardedAggregationEngine engine = new ShardedAggregationEngine(customProperties);
+
+        int emitted = 0;
+        for (int from = 0; from < actions.size(); from += 500) {
+            List<UserActionAvro> batch = actions.subList(from, from + 500);
+            batch.forEach(reference::process);
+            for (SimilarityScore score : engine.process(batch)) {
+                // Суммы вытесненных пар пересчитываются, поэтому отправляемые оценки точные
+                assertEquals(reference.score(score.eventA(), score.eventB()), score.score());
+                emitted++;
+            }
+        }
+        long pairs = engine.stateSize().minWeightSums();
+        assertTrue(pairs <= (long) events * (topK.getSize() + topK.getCandidates()), "Пар " + pairs);
+        assertTrue(pairs < reference.scores().size() / 2, "Пар " + pairs + " из " + reference.scores().size());
+        assertTrue(emitted > 0);
+        for (Map.Entry<String, Double> entry : reference.scores().entrySet()) {
+            String[] pair = entry.getKey().split(":");
+            assertEquals(entry.getValue(), engine.score(Long.parseLong(pair[0]), Long.parseLong(pair[1])));
+        }
+        engine.shutdown();
+    }
+
+    @Test
+    void boundedEngine_WithUnlimitedListsShouldMatchUnboundedEngine() {
+        List<UserActionAvro> actions = generateActions(300, 40, 8_000, 8);
+        CustomProperties customProperties = newProperties(3, "optimized");
+        CustomProperties.TopK topK = customProperties.getAggregator().getTopK();
+        topK.setEnabled(true);
+        topK.setSize(40);
+        topK.setCandidates(0);
+        topK.setMinScoreChange(0);
+        ShardedAggregationEngine bounded = new ShardedAggregationEngine(customProperties);
+        ShardedAggregationEngine unbounded = newEngine(3, "optimized");
+
+        for (int from = 0; from < actions.size(); from += 250) {
+            List<UserActionAvro> batch = actions.subList(from, from + 250);
+            assertEquals(toMap(unbounded.process(batch)), toMap(bounded.process(batch)));
+        }
+        bounded.shutdown();
+        unbounded.shutdown();
+    }
+
+    @Test
+    void cappedUserHistory_ShouldKeepSumsConsistentWithRetainedWeights() {
+        // Небольшой набор пользователей с длинной историей, чтобы ограничение срабатывало постоянно
+        List<UserActionAvro> actions = generateActions(30, 200, 20_000, 9);
+        for (String algorithm : List.of("optimized", "naive")) {
+            CustomProperties customProperties = newProperties(4, algorithm);
+            customProperties.getAggregator().getFanOut().setMaxUserHistory(25);
+            SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+            ShardedAggregationEngine engine = new ShardedAggregationEngine(customProperties, meterRegistry);
+            for (int from = 0; from < actions.size(); from += 400) {
+                engine.process(actions.subList(from, from + 400));
+            }
+
+            Map<Long, Map<Long, Long>> weightsByUser = assertSumsConsistent(engine, "optimized".equals(algorithm));
+            weightsByUser.values().forEach(userWeights -> assertTrue(userWeights.size() <= 25));
+            assertTrue(meterRegistry.get("aggregator.user.history.evicted").counter().count() > 0);
+            meterRegistry.get("aggregator.user.fanout").summaries().forEach(fanOut -> assertTrue(fanOut.max() <= 24));
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    void decayedEngine_ShouldScoreByDecayedWeightsAcrossEpochRebases() {
+        long hour = 3_600_000L;
+        List<UserActionAvro> actions = generateActions(400, 60, 10_000, 10);
+        for (int i = 0; i < actions.size(); i++) {
+            actions.get(i).setTimestamp(Instant.ofEpochMilli(1_700_000_000_000L + i * hour / 10));
+        }
+        CustomProperties customProperties = newProperties(4, "optimized");
+        CustomProperties.Decay decay = customProperties.getAggregator().getDecay();
+        decay.setEnabled(true);
+        decay.setHalfLife(Duration.ofDays(3));
+        decay.setEpsilon("0");
+        decay.setRebaseAfterHalfLives(2);
+        ShardedAggregationEngine engine = new ShardedAggregationEngine(customProperties);
+        DecayedReference reference = new DecayedReference(customProperties.getAggregator().getWeights(),
+                Duration.ofDays(3).toMillis());
+
+        for (int from = 0; from < actions.size(); from += 500) {
+            List<UserActionAvro> batch = actions.subList(from, from + 500);
+            batch.forEach(reference::process);
+            for (SimilarityScore score : engine.process(batch)) {
+                assertEquals(reference.score(score.eventA(), score.eventB()), score.score(), 1e-4);
+            }
+            engine.rebaseIfDue();
+        }
+        // 10 000 действий по 6 минут - почти 14 периодов полураспада, эпоха сдвигалась несколько раз
+        assertTrue(engine.decay().epochMillis() > 1_700_000_000_000L + Duration.ofDays(9).toMillis());
+        assertSumsConsistent(engine, true);
+        engine.shutdown();
+    }
+
+    @Test
+    void decaySweep_ShouldEvictFadedInteractionsConsistently() {
+        List<UserActionAvro> actions = generateActions(300, 50, 6_000, 11);
+        for (int i = 0; i < actions.size(); i++) {
+            actions.get(i).setTimestamp(Instant.ofEpochMilli(1_700_000_000_000L + i * 60_000L));
+        }
+        CustomProperties customProperties = newProperties(3, "optimized");
+        CustomProperties.Decay decay = customProperties.getAggregator().getDecay();
+        decay.setEnabled(true);
+        decay.setHalfLife(Duration.ofHours(12));
+        decay.setEpsilon("0.1");
+        ShardedAggregationEngine engine = new ShardedAggregationEngine(customProperties);
+        for (int from = 0; from < actions.size(); from += 1_000) {
+            engine.process(actions.subList(from, from + 1_000));
+        }
+
+        long before = engine.stateSize().userWeights();
+        List<SimilarityScore> changed = engine.sweepDecayed();
+        long after = engine.stateSize().userWeights();
+
+        assertTrue(after < before, before + " -> " + after);
+        assertFalse(changed.isEmpty());
+        long threshold = engine.decay().evictionThreshold();
+        assertSumsConsistent(engine, true).values()
+                .forEach(userWeights -> userWeights.values().forEach(weight -> assertTrue(weight >= threshold)));
+        engine.shutdown();
+    }
+
+    @Test
+    void tieredEngine_ShouldMatchSequentialAlgorithm(@TempDir Path directory) {
+        List<UserActionAvro> actions = generateActions(1_000, 200, 6_000, 12);
+        CustomProperties.Weights weights = new CustomProperties().getAggregator().getWeights();
+        for (String algorithm : List.of("optimized", "naive")) {
+            ReferenceAggregator reference = new ReferenceAggregator(weights);
+            CustomProperties customProperties = newProperties(2, algorithm);
+            CustomProperties.Tiered tiered = customProperties.getAggregator().getTiered();
+            tiered.setEnabled(true);
+            tiered.setDirectory(directory.resolve(algorithm).toString());
+            tiered.setMaxHotUsers(100);
+            tiered.setMaxHotEvents(80);
+            SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+            ShardedAggregationEngine engine = new ShardedAggregationEngine(customProperties, meterRegistry);
+            for (int from = 0; from < actions.size(); from += 300) {
+                Map<String, Double> expected = new HashMap<>();
+                actions.subList(from, from + 300).forEach(action -> expected.putAll(reference.process(action)));
+                expected.replaceAll((pair, ignored) -> reference.score(pair));
+                assertEquals(expected, toMap(engine.process(actions.subList(from, from + 300))), algorithm);
+            }
+            assertTrue(meterRegistry.get("aggregator.state.tier.faults").tag("matrix", "users").functionTimer().count() > 0);
+            assertTrue(meterRegistry.get("aggregator.state.tier.rows").tags("matrix", "users", "tier", "cold").gauge().value() > 0);
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    void similarityMetrics_ShouldBeComputedFromIncrementalSums() {
+        List<UserActionAvro> actions = generateActions(400, 60, 12_000, 17);
+        CustomProperties.Weights weights = new CustomProperties().getAggregator().getWeights();
+        ReferenceAggregator reference = new ReferenceAggregator(weights);
+        actions.forEach(reference::process);
+        double total = reference.eventSums.values().stream().mapToLong(Long::longValue).sum() / 1_000_000.0;
+
+        for (String metric : List.of("cosine", "jaccard", "lift")) {
+            CustomProperties customProperties = newProperties(3, "optimized");
+            customProperties.getAggregator().setSimilarityMetric(metric);
+            ShardedAggregationEngine engine = new ShardedAggregationEngine(customProperties);
+            for (int from = 0; from < actions.size(); from += 700) {
+                engine.process(actions.subList(from, Math.min(actions.size(), from + 700)));
+            }
+            reference.minWeightSums.forEach((first, row) -> row.forEach((second, sum) -> {
+                double min = sum / 1_000_000.0;
+                double firstSum = reference.eventSums.get(first) / 1_000_000.0;
+                double secondSum = reference.eventSums.get(second) / 1_000_000.0;
+                double expected = switch (metric) {
+                    case "cosine" -> reference.score(first, second);
+                    case "jaccard" -> min / (firstSum + secondSum - min);
+                    default -> min * total / (firstSum * secondSum);
+                };
+                assertEquals(expected, engine.score(first, second), 1e-12, metric);
+            }));
+            engine.shutdown();
+        }
+    }
+
+    // Маленький индекс постоянно вытесняет соседей, а оценки оставшихся падают по мере роста сумм событий,
+    // поэтому после каждой пачки список сверяется с лучшими соседями по всем отправленным оценкам
+    @Test
+    void neighbourLookup_ShouldRankLastEmittedScoresOfEachEvent() {
+        List<UserActionAvro> actions = generateActions(300, 50, 10_000, 23);
+        for (int size : List.of(1_000, 3)) {
+            CustomProperties customProperties = newProperties(3, "optimized");
+            customProperties.getAggregator().getLookup().setEnabled(true);
+            customProperties.getAggregator().getLookup().setSize(size);
+            ShardedAggregationEngine engine = new ShardedAggregationEngine(customProperties);
+            int limit = Math.min(size, 5);
+            Map<Long, Map<Long, Double>> emitted = new HashMap<>();
+            for (int from = 0; from < actions.size(); from += 250) {
+                for (SimilarityScore score : engine.process(actions.subList(from, Math.min(actions.size(), from + 250)))) {
+                    emitted.computeIfAbsent(score.eventA(), id -> new HashMap<>()).put(score.eventB(), score.score());
+                    emitted.computeIfAbsent(score.eventB(), id -> new HashMap<>()).put(score.eventA(), score.score());
+                }
+                emitted.forEach((eventId, neighbours) -> {
+                    List<SimilarityScore> expected = neighbours.entrySet().stream()
+                            .filter(entry -> entry.getValue() > 0)
+                            .sorted(Map.Entry.<Long, Double>comparingByValue().reversed()
+                                    .thenComparing(Map.Entry.comparingByKey()))
+                            .limit(limit)
+                            .map(entry -> new SimilarityScore(eventId, entry.getKey(), entry.getValue()))
+                            .toList();
+                    assertEquals(expected, engine.neighbours(eventId, limit), "size " + size);
+                });
+            }
+
+            assertFalse(emitted.isEmpty());
+            assertEquals(List.of(), engine.neighbours(-1, limit));
+            engine.shutdown();
+        }
+    }
+
+    // Проверяет, что суммы событий и пар совпадают с посчитанными заново по весам пользователей
+    private static Map<Long, Map<Long, Long>> assertSumsConsistent(ShardedAggregationEngine engine, boolean checkPairs) {
+        Map<Long, Map<Long, Long>> weightsByUser = new HashMap<>();
+        Map<Long, Long> eventSums = new HashMap<>();
+        Map<String, Long> minWeightSums = new HashMap<>();
+        engine.exportState(new StateVisitor() {
+            @Override
+            public void userWeight(long userId, long eventId, long weight) {
+                weightsByUser.computeIfAbsent(userId, id -> new HashMap<>()).put(eventId, weight);
+            }
+
+            @Override
+            public void eventSum(long eventId, long sum) {
+                eventSums.put(eventId, sum);
+            }
+
+            @Override
+            public void minWeightSum(long first, long second, long sum) {
+                minWeightSums.put(first + ":" + second, sum);
+            }
+        });
+
+        Map<Long, Long> expectedEventSums = new HashMap<>();
+        Map<String, Long> expectedMinWeightSums = new HashMap<>();
+        for (Map<Long, Long> userWeights : weightsByUser.values()) {
+            userWeights.forEach((eventId, weight) -> {
+                expectedEventSums.merge(eventId, weight, Long::sum);
+                userWeights.forEach((anotherEventId, anotherWeight) -> {
+                    if (eventId < anotherEventId) {
+                        expectedMinWeightSums.merge(eventId + ":" + anotherEventId, Math.min(weight, anotherWeight), Long::sum);
+                    }
+                });
+            });
+        }
+        assertEquals(expectedEventSums, eventSums);
+        if (checkPairs) assertEquals(expectedMinWeightSums, minWeightSums);
+        return weightsByUser;
+    }
+
+    private static ShardedAggregationEngine newEngine(int shardCount, String algorithm) {
+        return new ShardedAggregationEngine(newProperties(shardCount, algorithm));
+    }
+
+    private static CustomProperties newProperties(int shardCount, String algorithm) {
+        CustomProperties customProperties = new CustomProperties();
+        customProperties.getAggregator().setShardCount(shardCount);
+        customProperties.getAggregator().setMinimumSumAlgorithm(algorithm);
+        return customProperties;
+    }
+
+    private static Map<String, Double> toMap(List<SimilarityScore> scores) {
+        Map<String, Double> result = new HashMap<>();
+        for (SimilarityScore score : scores) {
+            assertNull(result.put(score.eventA() + ":" + score.eventB(), score.score()), "Пара отправлена дважды");
+        }
+        return result;
+    }
+
+    public static List<UserActionAvro> generateActions(int users, int events, int count, long seed) {
+        Random random = new Random(seed);
+        ActionTypeAvro[] types = ActionTypeAvro.values();
+        List<UserActionAvro> actions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            actions.add(UserActionAvro.newBuilder()
+                    .setUserId(1 + random.nextInt(users))
+                    .setEventId(1 + random.nextInt(events))
+                    .setActionType(types[random.nextInt(types.length)])
+                    .setTimestamp(Instant.ofEpochMilli(1_700_000_000_000L + i))
+                    .build());
+        }
+        return actions;
+    }
+
+    // Косинусное сходство по затухающим весам в числах с плавающей точкой: вес взаимодействия - максимум
+    // по его действиям величины w * 2^((t - t0) / halfLife), общий множитель на оценку не влияет
+    static class DecayedReference {
+
+        final CustomProperties.Weights weights;
+        final double halfLifeMillis;
+        final Map<Long, Map<Long, Double>> weightsByUser = new HashMap<>();
+        long epochMillis = Long.MIN_VALUE;
+
+        DecayedReference(CustomProperties.Weights weights, long halfLifeMillis) {
+            this.weights = weights;
+            this.halfLifeMillis = halfLifeMillis;
+        }
+
+        void process(UserActionAvro action) {
+            long timestamp = action.getTimestamp().toEpochMilli();
+            if (epochMillis == Long.MIN_VALUE) epochMillis = timestamp;
+            double weight = weights.ofUserAction(action) * Math.pow(2, (timestamp - epochMillis) / halfLifeMillis);
+            weightsByUser.computeIfAbsent(action.getUserId(), id -> new HashMap<>())
+                    .merge(action.getEventId(), weight, Math::max);
+        }
+
+        double score(long first, long second) {
+            double minSum = 0;
+            double firstSum = 0;
+            double secondSum = 0;
+            for (Map<Long, Double> userWeights : weightsByUser.values()) {
+                Double a = userWeights.get(first);
+                Double b = userWeights.get(second);
+                if (a != null) firstSum += a;
+                if (b != null) secondSum += b;
+                if (a != null && b != null) minSum += Math.min(a, b);
+            }
+            return minSum / (Math.sqrt(firstSum) * Math.sqrt(secondSum));
+        }
+    }
+
+    // Последовательный алгоритм в исходном виде: оптимизированный пересчёт минимальных сумм на вложенных картах
+    static class ReferenceAggregator {
+
+        final CustomProperties.Weights weights;
+        final Map<Long, Map<Long, Long>> weightsByUser = new HashMap<>();
+        final Map<Long, Long> eventSums = new HashMap<>();
+        final Map<Long, Map<Long, Long>> minWeightSums = new HashMap<>();
+
+        ReferenceAggregator(CustomProperties.Weights weights) {
+            this.weights = weights;
+        }
+
+        Map<String, Double> process(UserActionAvro action) {
+            long userId = action.getUserId();
+            long eventId = action.getEventId();
+            long newWeight = weights.ofUserAction(action);
+            Map<Long, Long> userWeights = weightsByUser.computeIfAbsent(userId, id -> new HashMap<>());
+            long oldWeight = 0L;
+            if (userWeights.containsKey(eventId)) {
+                oldWeight = userWeights.get(eventId);
+                if (newWeight <= oldWeight) return Map.of();
+            }
+            userWeights.put(eventId, newWeight);
+            eventSums.merge(eventId, newWeight - oldWeight, Long::sum);
+            for (Map.Entry<Long, Long> another : userWeights.entrySet()) {
+                if (another.getKey() != eventId) {
+                    long first = Math.min(eventId, another.getKey());
+                    long second = Math.max(eventId, another.getKey());
+                    long delta = Math.min(newWeight, another.getValue()) - Math.min(oldWeight, another.getValue());
+                    minWeightSums.computeIfAbsent(first, k -> new HashMap<>()).merge(second, delta, Long::sum);
+                }
+            }
+            Map<String, Double> emitted = new HashMap<>();
+            for (Long another : userWeights.keySet()) {
+                if (another != eventId) {
+                    long first = Math.min(eventId, another);
+                    long second = Math.max(eventId, another);
+                    emitted.put(first + ":" + second, score(first, second));
+                }
+            }
+            return emitted;
+        }
+
+        Map<String, Double> scores() {
+            Map<String, Double> result = new HashMap<>();
+            minWeightSums.forEach((first, row) -> row.keySet()
+                    .forEach(second -> result.put(first + ":" + second, score(first, second))));
+            return result;
+        }
+
+        double score(String pair) {
+            String[] events = pair.split(":");
+            return score(Long.parseLong(events[0]), Long.parseLong(events[1]));
+        }
+
+        double score(long first, long second) {
+            double numerator = minWeightSums.get(first).get(second) / 1_000_000.0;
+            double sqrt1 = Math.sqrt(eventSums.get(first) / 1_000_000.0);
+            double sqrt2 = Math.sqrt(eventSums.get(second) / 1_000_000.0);
+            return numerator / (sqrt1 * sqrt2);
+        }
+    }
+}
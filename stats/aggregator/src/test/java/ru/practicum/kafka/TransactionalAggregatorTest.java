@@ -0,0 +1,223 @@
+package ru.practicum.kafka;
+
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.VoidSerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import ru.practicum.AggregatorApplication;
+import ru.practicum.deserializer.EventsSimilarityAvroDeserializer;
+import ru.practicum.engine.ShardedAggregationEngine;
+import ru.practicum.ewm.stats.avro.ActionTypeAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CustomProperties;
+import ru.practicum.serializer.GeneralAvroSerializer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@EmbeddedKafka(partitions = 1, topics = {TransactionalAggregatorTest.USER_ACTIONS, TransactionalAggregatorTest.SIMILARITY},
+        brokerProperties = {"transaction.state.log.replication.factor=1", "transaction.state.log.min.isr=1"})
+class TransactionalAggregatorTest {
+
+    static final String USER_ACTIONS = "test.user-actions";
+    static final String SIMILARITY = "test.events-similarity";
+    private static final String GROUP = "aggregator-test-group";
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    // Сбой внедряется в отправку: после нескольких сообщений транзакции пачки отправка падает
+    private static final AtomicBoolean CRASH = new AtomicBoolean();
+    private static final AtomicInteger SENT_BEFORE_CRASH = new AtomicInteger();
+    private static final CountDownLatch CRASHED = new CountDownLatch(1);
+
+    @TempDir
+    Path directory;
+
+    // Каждое событие принадлежит одному пользователю, поэтому итоговая оценка пары отправляется в той же пачке,
+    // что и последнее изменение сумм её событий, при любом разбиении на пачки
+    @Test
+    void crashBeforeCommit_ShouldNeitherLoseNorDuplicateSimilarities(EmbeddedKafkaBroker broker) throws Exception {
+        List<UserActionAvro> first = generateActions(1, 40, 600, 1);
+        List<UserActionAvro> marker = generateActions(500, 1, 1, 2);
+        List<UserActionAvro> second = generateActions(1_000, 40, 600, 3);
+        List<UserActionAvro> third = generateActions(2_000, 40, 600, 4);
+        Path snapshot = directory.resolve("state.bin");
+        Path staleSnapshot = directory.resolve("stale.bin");
+
+        // Первый запуск: снимок берётся в начале каждой пачки, пачка marker фиксирует снимок после first
+        ConfigurableApplicationContext context = start(broker, snapshot);
+        produce(broker, first);
+        awaitCommitted(broker, first.size());
+        produce(broker, marker);
+        awaitCommitted(broker, first.size() + marker.size());
+        Files.copy(snapshot, staleSnapshot);
+        produce(broker, second);
+        awaitCommitted(broker, first.size() + marker.size() + second.size());
+        long secondMessages = countPairs(readCommitted(broker), 1_000, 2_000);
+        assertTrue(secondMessages > 0);
+
+        // Сбой посреди транзакции; снимок откатывается к давнему, чтобы при старте повторно прочитать second
+        CRASH.set(true);
+        produce(broker, third);
+        assertTrue(CRASHED.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        context.close();
+        Files.copy(staleSnapshot, snapshot, StandardCopyOption.REPLACE_EXISTING);
+        CRASH.set(false);
+
+        context = start(broker, snapshot);
+        int total = first.size() + marker.size() + second.size() + third.size();
+        awaitCommitted(broker, total);
+        context.close();
+
+        List<EventSimilarityAvro> output = readCommitted(broker);
+        assertEquals(secondMessages, countPairs(output, 1_000, 2_000), "Оценки повторно прочитанной пачки продублированы");
+
+        ShardedAggregationEngine expected = new ShardedAggregationEngine(new CustomProperties());
+        List<UserActionAvro> all = new ArrayList<>();
+        all.addAll(first);
+        all.addAll(marker);
+        all.addAll(second);
+        all.addAll(third);
+        Map<String, Double> expectedScores = new HashMap<>();
+        expected.process(all).forEach(score -> expectedScores.put(score.eventA() + ":" + score.eventB(), score.score()));
+        Map<String, Double> actualScores = new HashMap<>();
+        output.forEach(similarity -> actualScores.put(similarity.getEventA() + ":" + similarity.getEventB(), similarity.getScore()));
+        assertEquals(expectedScores, actualScores);
+        expected.shutdown();
+    }
+
+    private static ConfigurableApplicationContext start(EmbeddedKafkaBroker broker, Path snapshot) {
+        return new SpringApplicationBuilder(AggregatorApplication.class, CrashingTemplateConfig.class)
+                .properties(
+                        "spring.kafka.bootstrap-servers=" + broker.getBrokersAsString(),
+                        "my-area-guide.kafka.user-action-topic=" + USER_ACTIONS,
+                        "my-area-guide.kafka.events-similarity-topic=" + SIMILARITY,
+                        "my-area-guide.aggregator.snapshot.enabled=true",
+                        "my-area-guide.aggregator.snapshot.path=" + snapshot,
+                        "my-area-guide.aggregator.snapshot.interval=0s")
+                .run();
+    }
+
+    // Действия пользователей userFrom..userFrom+users-1; у каждого пользователя свои пять событий
+    private static List<UserActionAvro> generateActions(long userFrom, int users, int count, long seed) {
+        Random random = new Random(seed);
+        ActionTypeAvro[] types = ActionTypeAvro.values();
+        List<UserActionAvro> actions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long userId = userFrom + random.nextInt(users);
+            actions.add(UserActionAvro.newBuilder()
+                    .setUserId(userId)
+                    .setEventId(userId * 10 + random.nextInt(5))
+                    .setActionType(types[random.nextInt(types.length)])
+                    .setTimestamp(Instant.ofEpochMilli(1_700_000_000_000L + i))
+                    .build());
+        }
+        return actions;
+    }
+
+    private static void produce(EmbeddedKafkaBroker broker, List<UserActionAvro> actions) {
+        Map<String, Object> props = Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, broker.getBrokersAsString(),
+                ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, VoidSerializer.class,
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, GeneralAvroSerializer.class);
+        try (KafkaProducer<Void, SpecificRecordBase> producer = new KafkaProducer<>(props)) {
+            actions.forEach(action -> producer.send(new ProducerRecord<>(USER_ACTIONS, action)));
+        }
+    }
+
+    private static void awaitCommitted(EmbeddedKafkaBroker broker, long offset) throws Exception {
+        TopicPartition partition = new TopicPartition(USER_ACTIONS, 0);
+        try (Admin admin = Admin.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, broker.getBrokersAsString()))) {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < deadline) {
+                OffsetAndMetadata committed = admin.listConsumerGroupOffsets(GROUP)
+                        .partitionsToOffsetAndMetadata().get().get(partition);
+                if (committed != null && committed.offset() >= offset) return;
+                Thread.sleep(100);
+            }
+        }
+        fail("Смещение " + offset + " не закоммичено");
+    }
+
+    private static List<EventSimilarityAvro> readCommitted(EmbeddedKafkaBroker broker) {
+        Map<String, Object> props = Map.of(
+                ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, broker.getBrokersAsString(),
+                ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class,
+                ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, EventsSimilarityAvroDeserializer.class,
+                ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+        TopicPartition partition = new TopicPartition(SIMILARITY, 0);
+        List<EventSimilarityAvro> result = new ArrayList<>();
+        try (KafkaConsumer<String, EventSimilarityAvro> consumer = new KafkaConsumer<>(props)) {
+            consumer.assign(List.of(partition));
+            consumer.seekToBeginning(List.of(partition));
+            long end = consumer.endOffsets(List.of(partition)).get(partition);
+            while (consumer.position(partition) < end) {
+                for (ConsumerRecord<String, EventSimilarityAvro> record : consumer.poll(Duration.ofMillis(500))) {
+                    result.add(record.value());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long countPairs(List<EventSimilarityAvro> output, long userFrom, long userTo) {
+        return output.stream()
+                .filter(similarity -> similarity.getEventA() >= userFrom * 10 && similarity.getEventA() < userTo * 10)
+                .count();
+    }
+
+    @TestConfiguration
+    static class CrashingTemplateConfig {
+
+        @Bean
+        KafkaTemplate<String, SpecificRecordBase> kafkaTemplate(ProducerFactory<String, SpecificRecordBase> producerFactory) {
+            return new KafkaTemplate<>(producerFactory) {
+                @Override
+                public CompletableFuture<SendResult<String, SpecificRecordBase>> send(String topic, String key,
+                                                                                      SpecificRecordBase data) {
+                    CompletableFuture<SendResult<String, SpecificRecordBase>> future = super.send(topic, key, data);
+                    if (CRASH.get() && SENT_BEFORE_CRASH.incrementAndGet() > 3) {
+                        CRASHED.countDown();
+                        throw new IllegalStateException("Внедрённый сбой отправки");
+                    }
+                    return future;
+                }
+            };
+        }
+    }
+}
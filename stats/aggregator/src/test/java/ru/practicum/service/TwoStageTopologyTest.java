@@ -0,0 +1,184 @@
+package ru.practicum.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.SendResult;
+import ru.practicum.engine.AggregationStage;
+import ru.practicum.engine.ShardRouter;
+import ru.practicum.engine.ShardedAggregationEngine;
+import ru.practicum.engine.ShardedAggregationEngineTest;
+import ru.practicum.engine.StateVisitor;
+import ru.practicum.ewm.stats.avro.AggregationDeltasAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.key.UserActionKey;
+import ru.practicum.properties.CustomProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+// Двухэтапный режим на узлах в памяти: Kafka заменена перехватом отправок, партиции этапа приростов
+// нарезаются по пользователям, партиции этапа оценки - по меньшему событию пары
+class TwoStageTopologyTest {
+
+    private static final int DELTA_STAGES = 3;
+    private static final int SCORING_PARTITIONS = 4;
+    private static final int BATCH_SIZE = 500;
+
+    // Если этап оценки читает приросты всех экземпляров этапа 1 за пачку одним poll, его оценки совпадают
+    // с оценками одного узла пачка за пачкой
+    @Test
+    void alignedBatches_ShouldEmitSameScoresAsSingleNode() {
+        List<UserActionAvro> actions = ShardedAggregationEngineTest.generateActions(500, 80, 20_000, 31);
+        Node single = new Node(AggregationStage.SINGLE);
+        Node[] deltaStages = nodes(AggregationStage.DELTAS, DELTA_STAGES);
+        Node[] scoringStages = nodes(AggregationStage.SCORING, SCORING_PARTITIONS);
+
+        for (int from = 0; from < actions.size(); from += BATCH_SIZE) {
+            List<UserActionAvro> batch = actions.subList(from, Math.min(actions.size(), from + BATCH_SIZE));
+            single.service.processUserActions(batch);
+            processDeltaStages(deltaStages, batch);
+            Map<String, Double> scores = new HashMap<>();
+            for (int partition = 0; partition < SCORING_PARTITIONS; partition++) {
+                List<AggregationDeltasAvro> deltas = new ArrayList<>();
+                for (Node deltaStage : deltaStages) {
+                    deltas.addAll(deltaStage.takeDeltas(partition));
+                }
+                scoringStages[partition].service.processDeltas(deltas);
+                scores.putAll(scoringStages[partition].takeScores());
+            }
+            assertEquals(single.takeScores(), scores);
+        }
+        assertFalse(pairs(single.engine).isEmpty());
+    }
+
+    // При произвольном чередовании приростов разных экземпляров этапа 1 состояние этапа оценки сходится
+    // к состоянию одного узла: суммы складываются в любом порядке
+    @Test
+    void interleavedDeltas_ShouldConvergeToSingleNodeState() {
+        List<UserActionAvro> actions = ShardedAggregationEngineTest.generateActions(500, 80, 20_000, 37);
+        Node single = new Node(AggregationStage.SINGLE);
+        Node[] deltaStages = nodes(AggregationStage.DELTAS, DELTA_STAGES);
+        Node[] scoringStages = nodes(AggregationStage.SCORING, SCORING_PARTITIONS);
+        Random random = new Random(41);
+
+        for (int from = 0; from < actions.size(); from += BATCH_SIZE) {
+            List<UserActionAvro> batch = actions.subList(from, Math.min(actions.size(), from + BATCH_SIZE));
+            single.service.processUserActions(batch);
+            processDeltaStages(deltaStages, batch);
+            for (int partition = 0; partition < SCORING_PARTITIONS; partition++) {
+                List<AggregationDeltasAvro> deltas = new ArrayList<>();
+                for (Node deltaStage : deltaStages) {
+                    deltas.addAll(deltaStage.takeDeltas(partition));
+                }
+                Collections.shuffle(deltas, random);
+                for (AggregationDeltasAvro envelope : deltas) {
+                    scoringStages[partition].service.processDeltas(List.of(envelope));
+                }
+            }
+        }
+
+        ShardRouter partitions = new ShardRouter(SCORING_PARTITIONS);
+        List<long[]> pairs = pairs(single.engine);
+        assertFalse(pairs.isEmpty());
+        for (long[] pair : pairs) {
+            ShardedAggregationEngine owner = scoringStages[partitions.shardOfPair(pair[0], pair[1])].engine;
+            assertEquals(single.engine.score(pair[0], pair[1]), owner.score(pair[0], pair[1]), 1e-12);
+        }
+    }
+
+    private static void processDeltaStages(Node[] deltaStages, List<UserActionAvro> batch) {
+        for (int stage = 0; stage < deltaStages.length; stage++) {
+            int partition = stage;
+            deltaStages[stage].service.processUserActions(batch.stream()
+                    .filter(action -> UserActionKey.partitionOf(action.getUserId(), DELTA_STAGES) == partition)
+                    .toList());
+        }
+    }
+
+    private static Node[] nodes(AggregationStage stage, int count) {
+        Node[] nodes = new Node[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = new Node(stage);
+        }
+        return nodes;
+    }
+
+    private static List<long[]> pairs(ShardedAggregationEngine engine) {
+        List<long[]> pairs = new ArrayList<>();
+        engine.exportState(new StateVisitor() {
+            @Override
+            public void userWeight(long userId, long eventId, long weight) {
+            }
+
+            @Override
+            public void eventSum(long eventId, long sum) {
+            }
+
+            @Override
+            public void minWeightSum(long first, long second, long sum) {
+                pairs.add(new long[]{first, second});
+            }
+        });
+        return pairs;
+    }
+
+    // Узел агрегатора с перехватом отправок: оценки сходства копятся по парам, приросты - по партициям
+    private static class Node {
+
+        final ShardedAggregationEngine engine;
+        final UserActionService service;
+        final Map<String, Double> scores = new HashMap<>();
+        final Map<Integer, List<AggregationDeltasAvro>> deltas = new HashMap<>();
+
+        @SuppressWarnings("unchecked")
+        Node(AggregationStage stage) {
+            CustomProperties customProperties = new CustomProperties();
+            customProperties.getAggregator().setShardCount(2);
+            customProperties.getAggregator().getTopology().setStage(stage);
+            customProperties.getAggregator().getTopology().setScoringPartitions(SCORING_PARTITIONS);
+            ProducerFactory<String, SpecificRecordBase> producerFactory = mock(ProducerFactory.class);
+            KafkaTemplate<String, SpecificRecordBase> kafkaTemplate = new KafkaTemplate<>(producerFactory) {
+                @Override
+                public CompletableFuture<SendResult<String, SpecificRecordBase>> send(String topic, String key,
+                                                                                      SpecificRecordBase data) {
+                    EventSimilarityAvro similarity = (EventSimilarityAvro) data;
+                    scores.put(similarity.getEventA() + ":" + similarity.getEventB(), similarity.getScore());
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                @Override
+                public CompletableFuture<SendResult<String, SpecificRecordBase>> send(String topic, Integer partition,
+                                                                                      String key, SpecificRecordBase data) {
+                    deltas.computeIfAbsent(partition, id -> new ArrayList<>()).add((AggregationDeltasAvro) data);
+                    return CompletableFuture.completedFuture(null);
+                }
+            };
+            this.engine = new ShardedAggregationEngine(customProperties);
+            this.service = new UserActionService(kafkaTemplate, customProperties, engine, new SimpleMeterRegistry());
+        }
+
+        Map<String, Double> takeScores() {
+            Map<String, Double> result = new HashMap<>(scores);
+            scores.clear();
+            return result;
+        }
+
+        List<AggregationDeltasAvro> takeDeltas(int partition) {
+            List<AggregationDeltasAvro> result = deltas.getOrDefault(partition, List.of());
+            deltas.remove(partition);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ru.practicum.snapshot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.practicum.engine.ShardedAggregationEngine;
+import ru.practicum.engine.ShardedAggregationEngineTest;
+import ru.practicum.engine.SimilarityScore;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CustomProperties;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotServiceTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void restoredEngine_ShouldContinueExactlyLikeOriginal() {
+        List<UserActionAvro> actions = ShardedAggregationEngineTest.generateActions(400, 70, 12_000, 5);
+        List<UserActionAvro> before = actions.subList(0, 8_000);
+        List<UserActionAvro> after = actions.subList(8_000, actions.size());
+
+        CustomProperties original = newProperties(4);
+        ShardedAggregationEngine originalEngine = new ShardedAggregationEngine(original);
+        originalEngine.process(before);
+        new SnapshotService(originalEngine, original).snapshot(Map.of(0, 8_000L, 1, 17L));
+
+        // Количество шардов после перезапуска может отличаться
+        CustomProperties restored = newProperties(3);
+        ShardedAggregationEngine restoredEngine = new ShardedAggregationEngine(restored);
+        Map<Integer, Long> offsets = new SnapshotService(restoredEngine, restored).restore();
+
+        assertEquals(Map.of(0, 8_000L, 1, 17L), offsets);
+        assertEquals(originalEngine.stateSize(), restoredEngine.stateSize());
+        assertEquals(sorted(originalEngine.process(after)), sorted(restoredEngine.process(after)));
+        originalEngine.shutdown();
+        restoredEngine.shutdown();
+    }
+
+    @Test
+    void damagedSnapshot_ShouldBeIgnored() throws Exception {
+        CustomProperties properties = newProperties(1);
+        ShardedAggregationEngine engine = new ShardedAggregationEngine(properties);
+        engine.process(ShardedAggregationEngineTest.generateActions(50, 20, 1_000, 6));
+        SnapshotService snapshotService = new SnapshotService(engine, properties);
+        snapshotService.snapshot(Map.of(0, 1_000L));
+
+        Path path = Path.of(properties.getAggregator().getSnapshot().getPath());
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 5));
+
+        assertEquals(Map.of(), snapshotService.restore());
+        assertEquals(0, engine.stateSize().userWeights());
+    }
+
+    // Снимок по относительному пути зависел бы от рабочего каталога, поэтому запуск с таким путём не проходит
+    @Test
+    void relativeSnapshotPath_ShouldBeRejectedAtStartup() {
+        CustomProperties properties = newProperties(1);
+        properties.afterPropertiesSet();
+        properties.getAggregator().getSnapshot().setPath("snapshot/state.bin");
+        assertThrows(IllegalStateException.class, properties::afterPropertiesSet);
+    }
+
+    private CustomProperties newProperties(int shardCount) {
+        CustomProperties properties = new CustomProperties();
+        properties.getAggregator().setShardCount(shardCount);
+        properties.getAggregator().getSnapshot().setEnabled(true);
+        properties.getAggregator().getSnapshot().setPath(directory.resolve("state.bin").toString());
+        return properties;
+    }
+
+    private static List<SimilarityScore> sorted(List<SimilarityScore> scores) {
+        return scores.stream()
+                .sorted((a, b) -> a.eventA() != b.eventA()
+                        ? Long.compare(a.eventA(), b.eventA()) : Long.compare(a.eventB(), b.eventB()))
+                .toList();
+    }
+}
@@ -0,0 +1,56 @@
+package ru.practicum.state;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpenHashInteractionMatrixTest {
+
+    @Test
+    void matrix_ShouldBehaveLikeNestedHashMaps() {
+        OpenHashInteractionMatrix matrix = new OpenHashInteractionMatrix();
+        Map<Long, Map<Long, Long>> reference = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200_000; i++) {
+            long row = random.nextInt(500);
+            long col = random.nextInt(2_000) - 10;
+            long value = random.nextInt(10);
+            switch (random.nextInt(4)) {
+                case 0 -> {
+                    matrix.put(row, col, value);
+                    reference.computeIfAbsent(row, r -> new HashMap<>()).put(col, value);
+                }
+                case 1 -> {
+                    long actual = matrix.add(row, col, value);
+                    long expected = reference.computeIfAbsent(row, r -> new HashMap<>()).merge(col, value, Long::sum);
+                    assertEquals(expected, actual);
+                }
+                case 2 -> {
+                    Map<Long, Long> cols = reference.get(row);
+                    boolean expected = cols != null && cols.remove(col) != null;
+                    if (cols != null && cols.isEmpty()) reference.remove(row);
+                    assertEquals(expected, matrix.remove(row, col));
+                }
+                default -> {
+                    Map<Long, Long> cols = reference.getOrDefault(row, Map.of());
+                    assertEquals(cols.containsKey(col), matrix.contains(row, col));
+                    assertEquals(cols.getOrDefault(col, -1L), matrix.get(row, col, -1L));
+                }
+            }
+        }
+
+        assertEquals(reference.size(), matrix.rowCount());
+        assertEquals(reference.values().stream().mapToLong(Map::size).sum(), matrix.size());
+        for (Map.Entry<Long, Map<Long, Long>> rowEntry : reference.entrySet()) {
+            Map<Long, Long> actualRow = new HashMap<>();
+            matrix.forEachInRow(rowEntry.getKey(), actualRow::put);
+            assertEquals(rowEntry.getValue(), actualRow);
+            assertEquals(rowEntry.getValue().size(), matrix.rowSize(rowEntry.getKey()));
+        }
+    }
+}
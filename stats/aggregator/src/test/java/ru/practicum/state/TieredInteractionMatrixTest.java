@@ -0,0 +1,70 @@
+package ru.practicum.state;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TieredInteractionMatrixTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void tieredMatrix_ShouldBehaveLikeInMemoryMatrix() throws Exception {
+        OpenHashInteractionMatrix reference = new OpenHashInteractionMatrix();
+        try (TieredInteractionMatrix matrix = new TieredInteractionMatrix(20, directory.resolve("rows.spill"), 4_096)) {
+            Random random = new Random(17);
+            for (int i = 0; i < 100_000; i++) {
+                long row = random.nextInt(300);
+                long col = random.nextInt(50);
+                long value = random.nextInt(10);
+                switch (random.nextInt(5)) {
+                    case 0 -> {
+                        matrix.put(row, col, value);
+                        reference.put(row, col, value);
+                    }
+                    case 1 -> assertEquals(reference.add(row, col, value), matrix.add(row, col, value));
+                    case 2 -> assertEquals(reference.remove(row, col), matrix.remove(row, col));
+                    case 3 -> assertEquals(reference.rowSize(row), matrix.rowSize(row));
+                    default -> {
+                        assertEquals(reference.contains(row, col), matrix.contains(row, col));
+                        assertEquals(reference.get(row, col, -1L), matrix.get(row, col, -1L));
+                    }
+                }
+                assertTrue(matrix.hotRowCount() <= 20);
+            }
+
+            assertEquals(reference.size(), matrix.size());
+            assertEquals(reference.rowCount(), matrix.rowCount());
+            assertEquals(entries(reference), entries(matrix));
+            for (long row = 0; row < 300; row++) {
+                Map<Long, Long> expected = new HashMap<>();
+                Map<Long, Long> actual = new HashMap<>();
+                reference.forEachInRow(row, expected::put);
+                matrix.forEachInRow(row, actual::put);
+                assertEquals(expected, actual);
+            }
+            assertTrue(matrix.coldRowCount() > 0);
+            assertTrue(matrix.faults() > 0 && matrix.hits() > 0);
+            assertTrue(matrix.coldReads() > 0 && matrix.readHits() > 0);
+            // Файл перезаписывается, поэтому не растёт на каждое вытеснение
+            assertTrue(matrix.fileSize() < matrix.spills() * 16L);
+
+            matrix.clear();
+            assertEquals(0, matrix.size());
+            assertEquals(0, matrix.fileSize());
+        }
+    }
+
+    private static Map<String, Long> entries(InteractionMatrix matrix) {
+        Map<String, Long> entries = new HashMap<>();
+        matrix.forEach((row, col, value) -> entries.put(row + ":" + col, value));
+        return entries;
+    }
+}
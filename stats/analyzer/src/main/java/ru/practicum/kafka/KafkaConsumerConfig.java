@@ -2,20 +2,23 @@ package ru.practicum.kafka;
 
 import lombok.RequiredArgsConstructor;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
-import org.apache.kafka.common.serialization.VoidDeserializer;
+import org.apache.kafka.common.serialization.LongDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
 import org.springframework.kafka.listener.ContainerProperties;
-import ru.practicum.deserializer.EventsSimilarityAvroDeserializer;
-import ru.practicum.deserializer.UserActionAvroDeserializer;
+import ru.practicum.deserializer.EventSimilarityListDeserializer;
+import ru.practicum.deserializer.UserActionListDeserializer;
 import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.key.UserActionKey;
 import ru.practicum.properties.CustomProperties;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Configuration
@@ -26,47 +29,69 @@ public class KafkaConsumerConfig {
 
     private Map<String, Object> getNewCommonConsumerProperties() {
         Map<String, Object> props = new HashMap<>();
-        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, VoidDeserializer.class);
         props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, customProperties.getKafka().getBootstrapServers());
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, customProperties.getKafka().getAutoOffsetReset());
         props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, customProperties.getKafka().getEnableAutoCommit());
         props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, customProperties.getKafka().getMaxPollRecords());
+        // Оценки сходства из прерванных транзакций агрегатора не читаются
+        props.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, customProperties.getKafka().getIsolationLevel());
         return props;
     }
 
     @Bean
-    public ConsumerFactory<String, UserActionAvro> userActionConsumerFactory() {
+    public ConsumerFactory<Long, List<UserActionAvro>> userActionConsumerFactory() {
         Map<String, Object> props = getNewCommonConsumerProperties();
-        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, UserActionAvroDeserializer.class);
+        // Ключ действия - пользователь, событие или null, в зависимости от стратегии ключа коллектора
+        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, LongDeserializer.class);
+        // Значение - отдельное действие или конверт пачки действий, в обоих случаях список
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, UserActionListDeserializer.class);
         props.put(ConsumerConfig.GROUP_ID_CONFIG, customProperties.getKafka().getUserActionConsumerGroup());
         return new DefaultKafkaConsumerFactory<>(props);
     }
 
     @Bean
-    public ConsumerFactory<String, EventSimilarityAvro> eventsSimilarityConsumerFactory() {
+    public ConsumerFactory<String, List<EventSimilarityAvro>> eventsSimilarityConsumerFactory() {
         Map<String, Object> props = getNewCommonConsumerProperties();
-        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, EventsSimilarityAvroDeserializer.class);
+        // Ключ оценки - пара событий "eventA:eventB", по нему агрегатор распределяет оценки по партициям
+        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, EventSimilarityListDeserializer.class);
         props.put(ConsumerConfig.GROUP_ID_CONFIG, customProperties.getKafka().getEventsSimilarityConsumerGroup());
         return new DefaultKafkaConsumerFactory<>(props);
     }
 
     @Bean
-    public ConcurrentKafkaListenerContainerFactory<String, UserActionAvro> userActionListenerContainerFactory() {
-        ConcurrentKafkaListenerContainerFactory<String, UserActionAvro> factory = new ConcurrentKafkaListenerContainerFactory<>();
+    public ConcurrentKafkaListenerContainerFactory<Long, List<UserActionAvro>> userActionListenerContainerFactory() {
+        ConcurrentKafkaListenerContainerFactory<Long, List<UserActionAvro>> factory = new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(userActionConsumerFactory());
+        factory.setConcurrency(getUserActionConcurrency());
         factory.setAutoStartup(false);
-        factory.setBatchListener(false);
-        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.RECORD);
+        factory.getContainerProperties().setAckMode(getAckMode());
         return factory;
     }
 
     @Bean
-    public ConcurrentKafkaListenerContainerFactory<String, EventSimilarityAvro> eventsSimilarityListenerContainerFactory() {
-        ConcurrentKafkaListenerContainerFactory<String, EventSimilarityAvro> factory = new ConcurrentKafkaListenerContainerFactory<>();
+    public ConcurrentKafkaListenerContainerFactory<String, List<EventSimilarityAvro>> eventsSimilarityListenerContainerFactory() {
+        ConcurrentKafkaListenerContainerFactory<String, List<EventSimilarityAvro>> factory = new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(eventsSimilarityConsumerFactory());
+        // Все оценки одной пары лежат в одной партиции, поэтому потребители по партициям не конкурируют за строки
+        factory.setConcurrency(Integer.parseInt(customProperties.getKafka().getEventsSimilarityConcurrency()));
         factory.setAutoStartup(false);
-        factory.setBatchListener(false);
-        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.RECORD);
+        factory.getContainerProperties().setAckMode(getAckMode());
         return factory;
     }
-}
\ No newline at end of file
+
+    // Действия одного ключа лежат в одной партиции и читаются одним потребителем по порядку. Без ключа
+    // действия пользователя разбросаны по партициям, и параллельные потребители обрабатывали бы их вперемешку
+    private int getUserActionConcurrency() {
+        int concurrency = Integer.parseInt(customProperties.getKafka().getUserActionConcurrency());
+        if (concurrency > 1 && customProperties.getKafka().getUserActionKey() == UserActionKey.NONE) {
+            throw new IllegalStateException("Параллельное чтение действий требует ключа записей user-id или event-id");
+        }
+        return concurrency;
+    }
+
+    // Пакетный слушатель фиксирует смещения после обработки всей пачки
+    private ContainerProperties.AckMode getAckMode() {
+        return customProperties.getKafka().isBatchListener() ? ContainerProperties.AckMode.BATCH : ContainerProperties.AckMode.RECORD;
+    }
+}
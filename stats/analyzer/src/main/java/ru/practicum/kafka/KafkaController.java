@@ -3,45 +3,93 @@ package ru.practicum.kafka;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
 import org.springframework.stereotype.Service;
+import ru.practicum.deserializer.EventSimilarityListDeserializer;
+import ru.practicum.deserializer.UserActionListDeserializer;
 import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
 import ru.practicum.properties.CustomProperties;
 import ru.practicum.service.EventSimilarityService;
 import ru.practicum.service.UserActionService;
 
+import java.util.List;
+
 @Service
 @RequiredArgsConstructor
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class KafkaController {
 
+    static final String USER_ACTION_LISTENER = "userAction";
+    static final String USER_ACTION_BATCH_LISTENER = "userActionBatch";
+    static final String EVENT_SIMILARITY_LISTENER = "eventSimilarity";
+    static final String EVENT_SIMILARITY_BATCH_LISTENER = "eventSimilarityBatch";
+
+    // Пакетные слушатели получают значения без разбора и разбирают отдельные записи в переиспользуемый экземпляр
+    static final String RAW_VALUES = "value.deserializer=org.apache.kafka.common.serialization.ByteArrayDeserializer";
+
     KafkaListenerEndpointRegistry kafkaRegistry;
     CustomProperties customProperties;
     UserActionService userActionService;
     EventSimilarityService eventSimilarityService;
+    UserActionListDeserializer userActionDeserializer = new UserActionListDeserializer();
+    EventSimilarityListDeserializer eventSimilarityDeserializer = new EventSimilarityListDeserializer();
 
     @KafkaListener(
+            id = USER_ACTION_LISTENER,
+            idIsGroup = false,
             topics = "#{customProperties.kafka.userActionTopic}",
             containerFactory = "userActionListenerContainerFactory"
     )
-    public void listenUserAction(UserActionAvro userActionAvro) {
-        userActionService.handleUserAction(userActionAvro);
+    public void listenUserAction(List<UserActionAvro> userActionAvros) {
+        userActionAvros.forEach(userActionService::handleUserAction);
     }
 
     @KafkaListener(
+            id = USER_ACTION_BATCH_LISTENER,
+            idIsGroup = false,
+            topics = "#{customProperties.kafka.userActionTopic}",
+            containerFactory = "userActionListenerContainerFactory",
+            batch = "true",
+            properties = RAW_VALUES
+    )
+    public void listenUserActions(List<ConsumerRecord<Long, byte[]>> records) {
+        userActionService.handleUserActions(
+                userActionDeserializer.deserializeReusing(customProperties.getKafka().getUserActionTopic(), records));
+    }
+
+    @KafkaListener(
+            id = EVENT_SIMILARITY_LISTENER,
+            idIsGroup = false,
             topics = "#{customProperties.kafka.eventsSimilarityTopic}",
             containerFactory = "eventsSimilarityListenerContainerFactory"
     )
-    public void listenEventSimilarity(EventSimilarityAvro eventSimilarityAvro) {
-        eventSimilarityService.handleEventSimilarity(eventSimilarityAvro);
+    public void listenEventSimilarity(List<EventSimilarityAvro> eventSimilarityAvros) {
+        eventSimilarityAvros.forEach(eventSimilarityService::handleEventSimilarity);
+    }
+
+    @KafkaListener(
+            id = EVENT_SIMILARITY_BATCH_LISTENER,
+            idIsGroup = false,
+            topics = "#{customProperties.kafka.eventsSimilarityTopic}",
+            containerFactory = "eventsSimilarityListenerContainerFactory",
+            batch = "true",
+            properties = RAW_VALUES
+    )
+    public void listenEventSimilarities(List<ConsumerRecord<String, byte[]>> records) {
+        eventSimilarityService.handleEventSimilarities(
+                eventSimilarityDeserializer.deserializeReusing(customProperties.getKafka().getEventsSimilarityTopic(), records));
     }
 
+    // Запускаются либо слушатели отдельных записей, либо пакетные (my-area-guide.kafka.batch-listener)
     @EventListener(ApplicationReadyEvent.class)
     public void initKafkaProducer() {
-        kafkaRegistry.start();
+        boolean batch = customProperties.getKafka().isBatchListener();
+        kafkaRegistry.getListenerContainer(batch ? USER_ACTION_BATCH_LISTENER : USER_ACTION_LISTENER).start();
+        kafkaRegistry.getListenerContainer(batch ? EVENT_SIMILARITY_BATCH_LISTENER : EVENT_SIMILARITY_LISTENER).start();
     }
-}
\ No newline at end of file
+}
@@ -7,8 +7,8 @@ import lombok.experimental.FieldDefaults;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
-
-import java.math.BigDecimal;
+import ru.practicum.key.UserActionKey;
+import ru.practicum.weight.FixedPointWeight;
 
 @Getter
 @Setter
@@ -31,6 +31,13 @@ public class CustomProperties {
         private String autoOffsetReset = "latest";
         private String enableAutoCommit = "false";
         private String maxPollRecords = "500";
+        private String isolationLevel = "read_committed";
+        private String eventsSimilarityConcurrency = "1";
+        // Ключ записей действий, как у коллектора; параллельное чтение действий возможно только с ключом
+        private UserActionKey userActionKey = UserActionKey.NONE;
+        private String userActionConcurrency = "1";
+        // Пакетные слушатели: значения пачки разбираются в один переиспользуемый экземпляр записи
+        private boolean batchListener = false;
     }
 
     @Getter
@@ -46,11 +53,37 @@ public class CustomProperties {
         private String register = "0.7";
         private String view = "0.3";
 
-        public BigDecimal ofUserAction(UserActionAvro userActionAvro) {
+        // Веса в фиксированной точке, разбираются один раз при установке свойств
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private long likeWeight = FixedPointWeight.parse(like);
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private long registerWeight = FixedPointWeight.parse(register);
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private long viewWeight = FixedPointWeight.parse(view);
+
+        public void setLike(String like) {
+            this.likeWeight = FixedPointWeight.parse(like);
+            this.like = like;
+        }
+
+        public void setRegister(String register) {
+            this.registerWeight = FixedPointWeight.parse(register);
+            this.register = register;
+        }
+
+        public void setView(String view) {
+            this.viewWeight = FixedPointWeight.parse(view);
+            this.view = view;
+        }
+
+        public long ofUserAction(UserActionAvro userActionAvro) {
             return switch (userActionAvro.getActionType()) {
-                case LIKE -> new BigDecimal(like);
-                case REGISTER -> new BigDecimal(register);
-                default -> new BigDecimal(view);
+                case LIKE -> likeWeight;
+                case REGISTER -> registerWeight;
+                default -> viewWeight;
             };
         }
     }
@@ -1,15 +1,32 @@
 package ru.practicum.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import ru.practicum.dal.EventSimilarity;
 
+import java.time.Instant;
 import java.util.List;
 
 public interface EventSimilarityRepository extends JpaRepository<EventSimilarity, Long> {
 
-    EventSimilarity findByEventAAndEventB(Long eventA, Long eventB);
+    // Вставка или обновление оценки пары; более старая по времени оценка не перезаписывает более новую.
+    // Возвращает 0, если оценка устарела
+    @Modifying(clearAutomatically = true)
+    @Query(nativeQuery = true, value = """
+            INSERT INTO similarities (event_a, event_b, score, timestamp)
+            VALUES (:eventA, :eventB, :score, :timestamp)
+            ON CONFLICT (event_a, event_b) DO UPDATE
+            SET score = EXCLUDED.score, timestamp = EXCLUDED.timestamp
+            WHERE similarities.timestamp <= EXCLUDED.timestamp
+            """)
+    int upsertIfNewer(
+            @Param("eventA") Long eventA,
+            @Param("eventB") Long eventB,
+            @Param("score") Double score,
+            @Param("timestamp") Instant timestamp
+    );
 
     @Query(nativeQuery = true, value = """
             (
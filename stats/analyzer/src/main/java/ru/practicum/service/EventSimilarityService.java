@@ -16,25 +16,34 @@ public class EventSimilarityService {
 
     private final EventSimilarityRepository eventSimilarityRepository;
 
+    // Повторно доставленная или обогнанная более новой оценка пропускается по времени оценки (last-writer-wins),
+    // поэтому порядок обработки между потребителями разных партиций не важен
     @Transactional
     public void handleEventSimilarity(EventSimilarityAvro eventSimilarityAvro) {
         log.info("Начало обработки сходства событий: {}", eventSimilarityAvro);
-        // Определяем минимальное и максимальное ID событий
-        Long first = Math.min(eventSimilarityAvro.getEventA(), eventSimilarityAvro.getEventB());
-        Long second = Math.max(eventSimilarityAvro.getEventA(), eventSimilarityAvro.getEventB());
-        // Проверяем наличие существующего объекта сходства событий
-        EventSimilarity existingSimilarity = eventSimilarityRepository.findByEventAAndEventB(first, second);
-        if (existingSimilarity == null) {
-            // Если запись отсутствует, создаем новую сущность
-            EventSimilarity newSimilarity = EventSimilarityMapper.fromAvroToNewEntity(eventSimilarityAvro);
-            eventSimilarityRepository.save(newSimilarity);
-            log.info("Создана новая запись сходства событий: {}", newSimilarity);
+        upsert(eventSimilarityAvro);
+    }
+
+    // Пакетный путь: оценки приходят в переиспользуемом экземпляре и применяются по одной в общей транзакции пачки
+    @Transactional
+    public void handleEventSimilarities(Iterable<EventSimilarityAvro> eventSimilarityAvros) {
+        int count = 0;
+        for (EventSimilarityAvro eventSimilarityAvro : eventSimilarityAvros) {
+            upsert(eventSimilarityAvro);
+            count++;
+        }
+        log.info("Обработано {} оценок сходства событий из пачки", count);
+    }
+
+    private void upsert(EventSimilarityAvro eventSimilarityAvro) {
+        // Упорядочиваем ID событий так же, как в новой сущности
+        EventSimilarity similarity = EventSimilarityMapper.fromAvroToNewEntity(eventSimilarityAvro);
+        int updated = eventSimilarityRepository.upsertIfNewer(similarity.getEventA(), similarity.getEventB(),
+                similarity.getScore(), similarity.getTimestamp());
+        if (updated == 0) {
+            log.debug("Пропущена устаревшая оценка сходства событий: {}", similarity);
         } else {
-            // Если запись существует, обновляем её
-            existingSimilarity.setScore(eventSimilarityAvro.getScore());
-            existingSimilarity.setTimestamp(eventSimilarityAvro.getTimestamp());
-            eventSimilarityRepository.save(existingSimilarity);
-            log.info("Обновлена существующая запись сходства событий: {}", existingSimilarity);
+            log.info("Сохранена запись сходства событий: {}", similarity);
         }
     }
-}
\ No newline at end of file
+}
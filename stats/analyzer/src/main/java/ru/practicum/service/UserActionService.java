@@ -12,8 +12,10 @@ import ru.practicum.dal.UserAction;
 import ru.practicum.repository.UserActionRepository;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
 import ru.practicum.properties.CustomProperties;
+import ru.practicum.weight.FixedPointWeight;
 
-import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
 
 @Slf4j
 @Service
@@ -28,17 +30,31 @@ public class UserActionService {
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     public void handleUserAction(UserActionAvro userActionAvro) {
         log.info("Получено новое действие пользователя: {}", userActionAvro);
+        // Сохранение действия в репозиторий
+        UserAction userAction = userActionRepository.save(toEntity(userActionAvro));
+        log.info("Действие успешно сохранено: {}", userAction);
+    }
+
+    // Пакетный путь: действия приходят в переиспользуемом экземпляре, поэтому каждое сразу переносится в сущность.
+    // Пачка сохраняется в одной транзакции до фиксации её смещений
+    @Transactional
+    public void handleUserActions(Iterable<UserActionAvro> userActionAvros) {
+        List<UserAction> userActions = new ArrayList<>();
+        for (UserActionAvro userActionAvro : userActionAvros) {
+            userActions.add(toEntity(userActionAvro));
+        }
+        userActionRepository.saveAll(userActions);
+        log.info("Сохранено {} действий пользователей из пачки", userActions.size());
+    }
+
+    private UserAction toEntity(UserActionAvro userActionAvro) {
         // Определение веса действия
-        BigDecimal weight = customProperties.getAnalyzer().getWeights().ofUserAction(userActionAvro);
-        // Создание сущности действия пользователя
-        UserAction userAction = UserAction.builder()
+        long weight = customProperties.getAnalyzer().getWeights().ofUserAction(userActionAvro);
+        return UserAction.builder()
                 .userId(userActionAvro.getUserId())
                 .eventId(userActionAvro.getEventId())
-                .weight(weight)
+                .weight(FixedPointWeight.toBigDecimal(weight))
                 .timestamp(userActionAvro.getTimestamp())
                 .build();
-        // Сохранение действия в репозиторий
-        userActionRepository.save(userAction);
-        log.info("Действие успешно сохранено: {}", userAction);
     }
 }
\ No newline at end of file
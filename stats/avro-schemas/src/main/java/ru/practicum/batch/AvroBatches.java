@@ -0,0 +1,125 @@
+package ru.practicum.batch;
+
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import ru.practicum.ewm.stats.avro.ActionTypeAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityBatchAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.ewm.stats.avro.UserActionBatchAvro;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+// Упаковка записей в конверты пачек и распаковка обратно. Конверт помечается заголовком HEADER
+// с именем схемы конверта: по нему потребители отличают конверт от отдельной записи в той же теме
+public final class AvroBatches {
+
+    public static final String HEADER = "avro-batch";
+
+    private AvroBatches() {
+    }
+
+    public static boolean isBatch(Headers headers) {
+        return headers != null && headers.lastHeader(HEADER) != null;
+    }
+
+    public static List<Header> headers(SpecificRecordBase batch) {
+        return List.of(new RecordHeader(HEADER, batch.getSchema().getName().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static UserActionBatchAvro encodeUserActions(List<UserActionAvro> userActions) {
+        List<Long> userIds = new ArrayList<>(userActions.size());
+        List<Long> eventIds = new ArrayList<>(userActions.size());
+        List<ActionTypeAvro> actionTypes = new ArrayList<>(userActions.size());
+        List<Long> timestamps = new ArrayList<>(userActions.size());
+        long userId = 0;
+        long eventId = 0;
+        long timestamp = 0;
+        for (UserActionAvro userAction : userActions) {
+            userIds.add(userAction.getUserId() - userId);
+            eventIds.add(userAction.getEventId() - eventId);
+            actionTypes.add(userAction.getActionType());
+            timestamps.add(userAction.getTimestamp().toEpochMilli() - timestamp);
+            userId = userAction.getUserId();
+            eventId = userAction.getEventId();
+            timestamp = userAction.getTimestamp().toEpochMilli();
+        }
+        return UserActionBatchAvro.newBuilder()
+                .setUserIdDeltas(userIds)
+                .setEventIdDeltas(eventIds)
+                .setActionTypes(actionTypes)
+                .setTimestampDeltas(timestamps)
+                .build();
+    }
+
+    public static List<UserActionAvro> decodeUserActions(UserActionBatchAvro batch) {
+        int size = batch.getActionTypes().size();
+        List<UserActionAvro> userActions = new ArrayList<>(size);
+        long userId = 0;
+        long eventId = 0;
+        long timestamp = 0;
+        for (int i = 0; i < size; i++) {
+            userId += batch.getUserIdDeltas().get(i);
+            eventId += batch.getEventIdDeltas().get(i);
+            timestamp += batch.getTimestampDeltas().get(i);
+            userActions.add(UserActionAvro.newBuilder()
+                    .setUserId(userId)
+                    .setEventId(eventId)
+                    .setActionType(batch.getActionTypes().get(i))
+                    .setTimestamp(Instant.ofEpochMilli(timestamp))
+                    .build());
+        }
+        return userActions;
+    }
+
+    // Порядок оценок сохраняется; отправитель сортирует их по паре, чтобы разности были малы
+    public static EventSimilarityBatchAvro encodeSimilarities(List<EventSimilarityAvro> similarities) {
+        List<Long> eventAs = new ArrayList<>(similarities.size());
+        List<Long> eventBs = new ArrayList<>(similarities.size());
+        List<Double> scores = new ArrayList<>(similarities.size());
+        List<Long> timestamps = new ArrayList<>(similarities.size());
+        long eventA = 0;
+        long eventB = 0;
+        long timestamp = 0;
+        for (EventSimilarityAvro similarity : similarities) {
+            eventAs.add(similarity.getEventA() - eventA);
+            eventBs.add(similarity.getEventB() - eventB);
+            scores.add(similarity.getScore());
+            timestamps.add(similarity.getTimestamp().toEpochMilli() - timestamp);
+            eventA = similarity.getEventA();
+            eventB = similarity.getEventB();
+            timestamp = similarity.getTimestamp().toEpochMilli();
+        }
+        return EventSimilarityBatchAvro.newBuilder()
+                .setEventADeltas(eventAs)
+                .setEventBDeltas(eventBs)
+                .setScores(scores)
+                .setTimestampDeltas(timestamps)
+                .build();
+    }
+
+    public static List<EventSimilarityAvro> decodeSimilarities(EventSimilarityBatchAvro batch) {
+        int size = batch.getScores().size();
+        List<EventSimilarityAvro> similarities = new ArrayList<>(size);
+        long eventA = 0;
+        long eventB = 0;
+        long timestamp = 0;
+        for (int i = 0; i < size; i++) {
+            eventA += batch.getEventADeltas().get(i);
+            eventB += batch.getEventBDeltas().get(i);
+            timestamp += batch.getTimestampDeltas().get(i);
+            similarities.add(EventSimilarityAvro.newBuilder()
+                    .setEventA(eventA)
+                    .setEventB(eventB)
+                    .setScore(batch.getScores().get(i))
+                    .setTimestamp(Instant.ofEpochMilli(timestamp))
+                    .build());
+        }
+        return similarities;
+    }
+}
@@ -2,31 +2,46 @@ package ru.practicum.deserializer;
 
 import org.apache.avro.Schema;
 import org.apache.avro.io.BinaryDecoder;
-import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificRecordBase;
 import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.serialization.Deserializer;
 
+// Читатель и декодер создаются один раз на поток потребителя и переиспользуются для всех записей
 public abstract class AbstractAvroDeserializer<T extends SpecificRecordBase> implements Deserializer<T> {
 
     private final DecoderFactory decoderFactory = DecoderFactory.get();
-    private final Schema schema;
+    private final ThreadLocal<Decoding<T>> decodings;
 
     public AbstractAvroDeserializer(Schema schema) {
-        this.schema = schema;
+        this.decodings = ThreadLocal.withInitial(() -> new Decoding<>(new SpecificDatumReader<>(schema)));
     }
 
     @Override
     public T deserialize(String topic, byte[] bytes) {
+        return deserialize(topic, bytes, null);
+    }
+
+    // Разбор в переданный экземпляр (reuse), если он не null: поля экземпляра перезаписываются
+    public T deserialize(String topic, byte[] bytes, T reuse) {
         if (bytes == null) return null;
+        Decoding<T> decoding = decodings.get();
         try {
-            BinaryDecoder decoder = decoderFactory.binaryDecoder(bytes, null);
-            DatumReader<T> reader = new SpecificDatumReader<>(schema);
-            return reader.read(null, decoder);
+            decoding.decoder = decoderFactory.binaryDecoder(bytes, decoding.decoder);
+            return decoding.reader.read(reuse, decoding.decoder);
         } catch (Exception e) {
             throw new SerializationException("Ошибка десериализации топика " + topic, e);
         }
     }
-}
\ No newline at end of file
+
+    private static class Decoding<T> {
+
+        private final SpecificDatumReader<T> reader;
+        private BinaryDecoder decoder;
+
+        Decoding(SpecificDatumReader<T> reader) {
+            this.reader = reader;
+        }
+    }
+}
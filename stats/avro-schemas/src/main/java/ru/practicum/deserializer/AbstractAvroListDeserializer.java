@@ -0,0 +1,84 @@
+package ru.practicum.deserializer;
+
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import ru.practicum.batch.AvroBatches;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+// Значение темы - отдельная запись или конверт пачки записей (с заголовком AvroBatches.HEADER).
+// Оба вида разбираются в список записей, поэтому потребители читают тему при любом режиме производителей
+public abstract class AbstractAvroListDeserializer<T extends SpecificRecordBase, B extends SpecificRecordBase>
+        implements Deserializer<List<T>> {
+
+    private final AbstractAvroDeserializer<T> records;
+    private final AbstractAvroDeserializer<B> batches;
+    private final Function<B, List<T>> unpack;
+
+    protected AbstractAvroListDeserializer(AbstractAvroDeserializer<T> records, AbstractAvroDeserializer<B> batches,
+                                           Function<B, List<T>> unpack) {
+        this.records = records;
+        this.batches = batches;
+        this.unpack = unpack;
+    }
+
+    @Override
+    public List<T> deserialize(String topic, byte[] bytes) {
+        T record = records.deserialize(topic, bytes);
+        return record == null ? List.of() : List.of(record);
+    }
+
+    @Override
+    public List<T> deserialize(String topic, Headers headers, byte[] bytes) {
+        if (bytes == null || !AvroBatches.isBatch(headers)) return deserialize(topic, bytes);
+        return unpack.apply(batches.deserialize(topic, bytes));
+    }
+
+    // Разбор значений пачки poll без выделения записи на каждое отдельное сообщение: отдельные записи
+    // разбираются в один переиспользуемый экземпляр, который действителен только до следующего шага обхода
+    // и не должен сохраняться. Конверты распаковываются целиком. Пустые значения пропускаются
+    public Iterable<T> deserializeReusing(String topic, List<? extends ConsumerRecord<?, byte[]>> values) {
+        return () -> new Iterator<>() {
+            private final Iterator<? extends ConsumerRecord<?, byte[]>> source = values.iterator();
+            private Iterator<T> unpacked = Collections.emptyIterator();
+            private T reuse;
+            private T next;
+
+            // Следующая запись разбирается только здесь, когда обход предыдущей закончен
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (unpacked.hasNext()) {
+                        next = unpacked.next();
+                    } else if (!source.hasNext()) {
+                        return false;
+                    } else {
+                        ConsumerRecord<?, byte[]> record = source.next();
+                        if (record.value() == null) continue;
+                        if (AvroBatches.isBatch(record.headers())) {
+                            unpacked = unpack.apply(batches.deserialize(topic, record.value())).iterator();
+                        } else {
+                            reuse = records.deserialize(topic, record.value(), reuse);
+                            next = reuse;
+                        }
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                T result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,10 @@
+package ru.practicum.deserializer;
+
+import ru.practicum.ewm.stats.avro.AggregationDeltasAvro;
+
+public class AggregationDeltasAvroDeserializer extends AbstractAvroDeserializer<AggregationDeltasAvro> {
+
+    public AggregationDeltasAvroDeserializer() {
+        super(AggregationDeltasAvro.getClassSchema());
+    }
+}
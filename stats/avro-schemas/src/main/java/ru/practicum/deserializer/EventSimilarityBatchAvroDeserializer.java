@@ -0,0 +1,10 @@
+package ru.practicum.deserializer;
+
+import ru.practicum.ewm.stats.avro.EventSimilarityBatchAvro;
+
+public class EventSimilarityBatchAvroDeserializer extends AbstractAvroDeserializer<EventSimilarityBatchAvro> {
+
+    public EventSimilarityBatchAvroDeserializer() {
+        super(EventSimilarityBatchAvro.getClassSchema());
+    }
+}
@@ -0,0 +1,12 @@
+package ru.practicum.deserializer;
+
+import ru.practicum.batch.AvroBatches;
+import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityBatchAvro;
+
+public class EventSimilarityListDeserializer extends AbstractAvroListDeserializer<EventSimilarityAvro, EventSimilarityBatchAvro> {
+
+    public EventSimilarityListDeserializer() {
+        super(new EventsSimilarityAvroDeserializer(), new EventSimilarityBatchAvroDeserializer(), AvroBatches::decodeSimilarities);
+    }
+}
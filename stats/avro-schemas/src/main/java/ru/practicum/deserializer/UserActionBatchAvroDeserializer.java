@@ -0,0 +1,10 @@
+package ru.practicum.deserializer;
+
+import ru.practicum.ewm.stats.avro.UserActionBatchAvro;
+
+public class UserActionBatchAvroDeserializer extends AbstractAvroDeserializer<UserActionBatchAvro> {
+
+    public UserActionBatchAvroDeserializer() {
+        super(UserActionBatchAvro.getClassSchema());
+    }
+}
@@ -0,0 +1,12 @@
+package ru.practicum.deserializer;
+
+import ru.practicum.batch.AvroBatches;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.ewm.stats.avro.UserActionBatchAvro;
+
+public class UserActionListDeserializer extends AbstractAvroListDeserializer<UserActionAvro, UserActionBatchAvro> {
+
+    public UserActionListDeserializer() {
+        super(new UserActionAvroDeserializer(), new UserActionBatchAvroDeserializer(), AvroBatches::decodeUserActions);
+    }
+}
@@ -0,0 +1,32 @@
+package ru.practicum.key;
+
+import org.apache.kafka.common.utils.Utils;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+
+import java.nio.ByteBuffer;
+
+// Ключ записей темы действий пользователей (сериализуется LongSerializer). Записи с одним ключом попадают
+// в одну партицию и читаются по порядку, поэтому потребители могут делить состояние по партициям.
+// Коллектор и потребители должны использовать одну стратегию
+public enum UserActionKey {
+    // Без ключа: производитель распределяет записи по партициям пачками
+    NONE,
+    // Все действия пользователя в одной партиции
+    USER_ID,
+    // Все действия с событием в одной партиции
+    EVENT_ID;
+
+    public Long of(UserActionAvro userActionAvro) {
+        return switch (this) {
+            case NONE -> null;
+            case USER_ID -> userActionAvro.getUserId();
+            case EVENT_ID -> userActionAvro.getEventId();
+        };
+    }
+
+    // Партиция записи с ключом key, как у партиционировщика производителя по умолчанию для записи с ключом
+    public static int partitionOf(long key, int partitions) {
+        byte[] bytes = ByteBuffer.allocate(Long.BYTES).putLong(key).array();
+        return Utils.toPositive(Utils.murmur2(bytes)) % partitions;
+    }
+}
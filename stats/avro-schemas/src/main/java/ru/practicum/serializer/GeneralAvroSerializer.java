@@ -1,5 +1,6 @@
 package ru.practicum.serializer;
 
+import org.apache.avro.Schema;
 import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DatumWriter;
 import org.apache.avro.io.EncoderFactory;
@@ -10,23 +11,50 @@ import org.apache.kafka.common.serialization.Serializer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Писатели кэшируются по схеме записи, кодировщик и буфер переиспользуются в потоке отправителя,
+// поэтому на запись выделяется только результат точного размера
 public class GeneralAvroSerializer implements Serializer<SpecificRecordBase> {
 
+    private static final byte[] EMPTY = new byte[0];
+
+    // Буфер, выросший на редкой большой записи сверх этого размера, потоком не удерживается
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+
+    private static final ThreadLocal<EncodingBuffer> BUFFERS = ThreadLocal.withInitial(EncodingBuffer::new);
+
     private final EncoderFactory encoderFactory = EncoderFactory.get();
+    private final Map<Schema, DatumWriter<SpecificRecordBase>> writers = new ConcurrentHashMap<>();
 
     @Override
     public byte[] serialize(String topic, SpecificRecordBase data) {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            if (data != null) {
-                DatumWriter<SpecificRecordBase> writer = new SpecificDatumWriter<>(data.getSchema());
-                BinaryEncoder encoder = encoderFactory.binaryEncoder(out, null);
-                writer.write(data, encoder);
-                encoder.flush();
-            }
-            return out.toByteArray();
+        if (data == null) return EMPTY;
+        EncodingBuffer buffer = BUFFERS.get();
+        try {
+            buffer.reset();
+            // Прямой кодировщик пишет сразу в буфер потока, без собственного промежуточного буфера
+            buffer.encoder = encoderFactory.directBinaryEncoder(buffer, buffer.encoder);
+            writers.computeIfAbsent(data.getSchema(), SpecificDatumWriter::new).write(data, buffer.encoder);
+            return buffer.toByteArray();
         } catch (IOException e) {
             throw new SerializationException("Ошибка сериализации топика " + topic, e);
+        } finally {
+            if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) BUFFERS.remove();
+        }
+    }
+
+    private static class EncodingBuffer extends ByteArrayOutputStream {
+
+        private BinaryEncoder encoder;
+
+        EncodingBuffer() {
+            super(256);
+        }
+
+        int capacity() {
+            return buf.length;
         }
     }
-}
\ No newline at end of file
+}
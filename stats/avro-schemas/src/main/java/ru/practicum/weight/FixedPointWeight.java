@@ -0,0 +1,36 @@
+package ru.practicum.weight;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// Вес взаимодействия в целых миллионных долях (long), чтобы суммы и минимумы считались без BigDecimal.
+// Сложение и сравнение целых точны, а перевод в double даёт то же значение, что и BigDecimal.doubleValue()
+// для исходной десятичной записи, поэтому оценки сходства совпадают побитово.
+public final class FixedPointWeight {
+
+    public static final int SCALE = 6;
+    public static final long ONE = 1_000_000L;
+
+    private static final double ONE_AS_DOUBLE = ONE;
+
+    private FixedPointWeight() {
+    }
+
+    // Разбор конфигурационного значения вида "0.4"; более 6 знаков после запятой не допускается
+    public static long parse(String value) {
+        try {
+            return new BigDecimal(value.trim()).setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new IllegalArgumentException("Некорректный вес '" + value + "': допускается не более "
+                    + SCALE + " знаков после запятой", e);
+        }
+    }
+
+    public static double toDouble(long weight) {
+        return weight / ONE_AS_DOUBLE;
+    }
+
+    public static BigDecimal toBigDecimal(long weight) {
+        return BigDecimal.valueOf(weight, SCALE);
+    }
+}
@@ -5,16 +5,27 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import net.devh.boot.grpc.server.service.GrpcService;
 import ru.practicum.grpc.collector.UserActionControllerGrpc;
+import ru.practicum.grpc.user.action.UserActionBatchProto;
 import ru.practicum.grpc.user.action.UserActionProto;
+import ru.practicum.properties.CollectorProperties;
 import ru.practicum.service.UserActionService;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+@Slf4j
 @GrpcService
 @RequiredArgsConstructor
 public class GrpcUserActionController extends UserActionControllerGrpc.UserActionControllerImplBase {
 
     private final UserActionService userActionService;
+    private final CollectorProperties properties;
 
     @Override
     public void collectUserAction(
@@ -22,13 +33,86 @@ public class GrpcUserActionController extends UserActionControllerGrpc.UserActio
             StreamObserver<Empty> responseObserver
     ) {
         try {
-            userActionService.handleUserAction(request);
-            responseObserver.onNext(Empty.getDefaultInstance());
-            responseObserver.onCompleted();
+            acknowledge(userActionService.handleUserAction(request), responseObserver);
+        } catch (Exception e) {
+            responseObserver.onError(toStatus(e));
+        }
+    }
+
+    @Override
+    public void collectUserActionBatch(
+            UserActionBatchProto request,
+            StreamObserver<Empty> responseObserver
+    ) {
+        try {
+            acknowledge(userActionService.handleUserActions(request.getActionsList()), responseObserver);
         } catch (Exception e) {
-            responseObserver.onError(
-                    new StatusRuntimeException(Status.INTERNAL.withDescription(e.getMessage()).withCause(e))
-            );
+            responseObserver.onError(toStatus(e));
         }
     }
-}
\ No newline at end of file
+
+    // Действия потока передаются производителю частями по maxSize, не дожидаясь конца потока, поэтому
+    // долгоживущий поток не копит действия в памяти. Ответ один на весь поток: после подтверждения всех частей
+    @Override
+    public StreamObserver<UserActionProto> collectUserActions(StreamObserver<Empty> responseObserver) {
+        int chunkSize = properties.getKafka().getBatch().getMaxSize();
+        return new StreamObserver<>() {
+            private List<UserActionProto> chunk = new ArrayList<>();
+            private final List<CompletableFuture<Void>> sent = new ArrayList<>();
+            private boolean failed;
+
+            @Override
+            public void onNext(UserActionProto userActionProto) {
+                if (failed) return;
+                chunk.add(userActionProto);
+                if (chunk.size() >= chunkSize) sendChunk();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.warn("Поток действий прерван клиентом, не отправлено {} действий: {}", chunk.size(), t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed) return;
+                if (!chunk.isEmpty()) sendChunk();
+                if (!failed) acknowledge(CompletableFuture.allOf(sent.toArray(CompletableFuture[]::new)), responseObserver);
+            }
+
+            // Отклонённая часть завершает поток ошибкой сразу, не дожидаясь его конца
+            private void sendChunk() {
+                try {
+                    CompletableFuture<Void> future = userActionService.handleUserActions(chunk);
+                    chunk = new ArrayList<>();
+                    if (future.isCompletedExceptionally()) {
+                        failed = true;
+                        acknowledge(future, responseObserver);
+                    } else {
+                        sent.add(future);
+                    }
+                } catch (Exception e) {
+                    failed = true;
+                    responseObserver.onError(toStatus(e));
+                }
+            }
+        };
+    }
+
+    private static void acknowledge(CompletableFuture<Void> sent, StreamObserver<Empty> responseObserver) {
+        sent.whenComplete((result, e) -> {
+            if (e == null) {
+                responseObserver.onNext(Empty.getDefaultInstance());
+                responseObserver.onCompleted();
+            } else {
+                responseObserver.onError(toStatus(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e));
+            }
+        });
+    }
+
+    // Заполненная очередь - сигнал клиенту повторить позже
+    private static StatusRuntimeException toStatus(Throwable e) {
+        Status status = e instanceof RejectedExecutionException ? Status.RESOURCE_EXHAUSTED : Status.INTERNAL;
+        return new StatusRuntimeException(status.withDescription(e.getMessage()).withCause(e));
+    }
+}
@@ -13,7 +13,7 @@ import org.springframework.stereotype.Component;
 @Slf4j
 public class KafkaProducerInitializer {
 
-    private final KafkaTemplate<Void, SpecificRecordBase> kafkaTemplate;
+    private final KafkaTemplate<Long, SpecificRecordBase> kafkaTemplate;
 
     @EventListener(ApplicationReadyEvent.class)
     public void initKafkaProducer() {
@@ -4,17 +4,65 @@ import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import org.springframework.util.unit.DataSize;
+import ru.practicum.key.UserActionKey;
+
+import java.time.Duration;
+
 @Getter
 @Setter
 @ConfigurationProperties("my-area-guide")
 public class CollectorProperties {
 
     private final Kafka kafka = new Kafka();
+    private final Pipeline pipeline = new Pipeline();
+    private final Dedup dedup = new Dedup();
+    private final Spool spool = new Spool();
 
     @Getter
     @Setter
     public static class Kafka {
         private String userActionTopic = "user-actions";
         private String eventsSimilarityTopic = "events-similarity";
+        // Ключ записей действий: потребители могут делить состояние по партициям пользователей или событий
+        private UserActionKey key = UserActionKey.NONE;
+        private final Batch batch = new Batch();
+    }
+
+    // Отправка действий конвертами UserActionBatchAvro вместо отдельных записей
+    @Getter
+    @Setter
+    public static class Batch {
+        private boolean enabled = false;
+        private int maxSize = 500;
+        private Duration linger = Duration.ofMillis(5);
+    }
+
+    // Очередь действий между gRPC и производителем Kafka: при заполнении вызовы отклоняются с RESOURCE_EXHAUSTED
+    @Getter
+    @Setter
+    public static class Pipeline {
+        private int queueCapacity = 10_000;
+    }
+
+    // Отсев повторных действий, не повышающих вес взаимодействия; память - 16 байт на ячейку
+    @Getter
+    @Setter
+    public static class Dedup {
+        private boolean enabled = false;
+        private Duration ttl = Duration.ofMinutes(10);
+        private int capacity = 1 << 20;
+    }
+
+    // Локальный журнал действий на время недоступности Kafka; каталог - абсолютный путь, переживающий перезапуск
+    @Getter
+    @Setter
+    public static class Spool {
+        private boolean enabled = false;
+        private String directory;
+        private DataSize segmentSize = DataSize.ofMegabytes(64);
+        private int replayBatch = 500;
+        private Duration retryInterval = Duration.ofSeconds(1);
+        private Duration replayTimeout = Duration.ofSeconds(30);
     }
-}
\ No newline at end of file
+}
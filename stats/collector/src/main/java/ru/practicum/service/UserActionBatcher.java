@@ -0,0 +1,132 @@
+package ru.practicum.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+import ru.practicum.batch.AvroBatches;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.ewm.stats.avro.UserActionBatchAvro;
+import ru.practicum.key.UserActionKey;
+import ru.practicum.properties.CollectorProperties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Накопление действий для отправки конвертами: конверт уходит, когда набралось maxSize действий
+// или через linger после первого действия конверта. Порядок действий сохраняется.
+// При стратегии ключа, отличной от none, конверты копятся отдельно по партициям, в которые попали бы
+// отдельные записи с ключом, и отправляются в эти партиции явно
+@Slf4j
+@Component
+public class UserActionBatcher {
+
+    private static final int WITHOUT_KEY = -1;
+
+    private final KafkaTemplate<Long, SpecificRecordBase> kafkaTemplate;
+    private final CollectorProperties.Kafka properties;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "collector-batch-linger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Накапливаемые конверты по партициям; таймер отправляет только тот конверт, для которого был запущен
+    private final Map<Integer, Envelope> pending = new HashMap<>();
+    private volatile int partitions;
+
+    public UserActionBatcher(KafkaTemplate<Long, SpecificRecordBase> kafkaTemplate, CollectorProperties properties) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.properties = properties.getKafka();
+    }
+
+    // Future завершается, когда брокер подтвердил конверт с этим действием
+    public synchronized CompletableFuture<Void> add(UserActionAvro userActionAvro) {
+        int partition = partitionOf(userActionAvro);
+        Envelope envelope = pending.computeIfAbsent(partition, id -> new Envelope());
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        envelope.userActions.add(userActionAvro);
+        envelope.futures.add(future);
+        if (envelope.userActions.size() >= properties.getBatch().getMaxSize()) {
+            flush(partition);
+        } else if (envelope.userActions.size() == 1) {
+            scheduler.schedule(() -> flush(partition, envelope), properties.getBatch().getLinger().toNanos(),
+                    TimeUnit.NANOSECONDS);
+        }
+        return future;
+    }
+
+    // Конверты для готового списка действий (повтор из локального журнала): по одному на партицию
+    public List<ProducerRecord<Long, SpecificRecordBase>> envelopes(List<UserActionAvro> userActions) {
+        Map<Integer, List<UserActionAvro>> byPartition = new LinkedHashMap<>();
+        for (UserActionAvro userAction : userActions) {
+            byPartition.computeIfAbsent(partitionOf(userAction), id -> new ArrayList<>()).add(userAction);
+        }
+        List<ProducerRecord<Long, SpecificRecordBase>> records = new ArrayList<>(byPartition.size());
+        byPartition.forEach((partition, partitionActions) -> records.add(envelope(partition, partitionActions)));
+        return records;
+    }
+
+    private synchronized void flush(int partition, Envelope scheduled) {
+        if (pending.get(partition) == scheduled) flush(partition);
+    }
+
+    private synchronized void flush(int partition) {
+        Envelope envelope = pending.remove(partition);
+        if (envelope == null) return;
+        try {
+            kafkaTemplate.send(envelope(partition, envelope.userActions))
+                    .whenComplete((result, e) -> complete(envelope.futures, e));
+        } catch (Exception e) {
+            complete(envelope.futures, e);
+        }
+        log.debug("Отправлен конверт из {} действий", envelope.userActions.size());
+    }
+
+    private ProducerRecord<Long, SpecificRecordBase> envelope(int partition, List<UserActionAvro> userActions) {
+        UserActionBatchAvro batch = AvroBatches.encodeUserActions(userActions);
+        return new ProducerRecord<Long, SpecificRecordBase>(properties.getUserActionTopic(),
+                partition == WITHOUT_KEY ? null : partition, null, batch, AvroBatches.headers(batch));
+    }
+
+    // Количество партиций темы запрашивается у производителя один раз
+    private int partitionOf(UserActionAvro userActionAvro) {
+        Long key = properties.getKey().of(userActionAvro);
+        if (key == null) return WITHOUT_KEY;
+        if (partitions == 0) partitions = kafkaTemplate.partitionsFor(properties.getUserActionTopic()).size();
+        return UserActionKey.partitionOf(key, partitions);
+    }
+
+    private static void complete(List<CompletableFuture<Void>> futures, Throwable e) {
+        for (CompletableFuture<Void> future : futures) {
+            if (e == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Производитель Kafka закрывается после этого компонента, поэтому накопленные действия успевают уйти
+    @PreDestroy
+    public synchronized void close() {
+        scheduler.shutdownNow();
+        for (Integer partition : List.copyOf(pending.keySet())) {
+            flush(partition);
+        }
+    }
+
+    private static class Envelope {
+        final List<UserActionAvro> userActions = new ArrayList<>();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+    }
+}
@@ -0,0 +1,98 @@
+package ru.practicum.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CollectorProperties;
+
+// Отсев действий, которые не могут повысить вес взаимодействия: агрегатор хранит максимальный вес пары
+// (пользователь, событие) и игнорирует не больший. Действие отсеивается, если за последние ttl по времени
+// действия та же пара уже прошла с не менее весомым действием (порядок весов - VIEW < REGISTER < LIKE,
+// как в порядке ActionTypeAvro). Повтор после ttl проходит, поэтому затухание весов в агрегаторе не нарушается.
+//
+// Память ограничена: таблица прямого отображения на capacity ячеек по 16 байт (отпечаток пары и время с рангом).
+// Вытеснение при совпадении ячеек только пропускает лишнее действие; ложный отсев возможен лишь при совпадении
+// 64-битных отпечатков разных пар. Пара запоминается только после подтверждения брокером или записи в журнал,
+// иначе повтор клиента после неудачной отправки был бы отсеян и потерян. Проверка идёт из потока отправки
+// UserActionPipeline, запоминание - из потоков подтверждения производителя, поэтому методы синхронизированы
+@Component
+public class UserActionDeduplicator {
+
+    private final boolean enabled;
+    private final long ttlMillis;
+    private final long[] fingerprints;
+    private final long[] stamps;
+    private final int mask;
+    private final Counter checked;
+    private final Counter suppressed;
+
+    public UserActionDeduplicator(CollectorProperties properties, MeterRegistry meterRegistry) {
+        CollectorProperties.Dedup dedup = properties.getDedup();
+        this.enabled = dedup.isEnabled();
+        this.ttlMillis = dedup.getTtl().toMillis();
+        int capacity = enabled ? Integer.highestOneBit(Math.max(1, dedup.getCapacity())) : 1;
+        this.fingerprints = new long[capacity];
+        this.stamps = new long[capacity];
+        this.mask = capacity - 1;
+        this.checked = Counter.builder("collector.dedup.checked")
+                .description("Действия, проверенные на повтор")
+                .register(meterRegistry);
+        this.suppressed = Counter.builder("collector.dedup.suppressed")
+                .description("Отсеянные действия, не повышающие вес")
+                .register(meterRegistry);
+        Gauge.builder("collector.dedup.suppression.rate", this, UserActionDeduplicator::suppressionRate)
+                .description("Доля отсеянных действий с запуска")
+                .register(meterRegistry);
+    }
+
+    // true - действие не повысит вес и не отправляется; таблицу не меняет
+    public synchronized boolean isRedundant(UserActionAvro userActionAvro) {
+        if (!enabled) return false;
+        checked.increment();
+        long fingerprint = fingerprint(userActionAvro.getUserId(), userActionAvro.getEventId());
+        int slot = (int) fingerprint & mask;
+        if (fingerprints[slot] == fingerprint && covers(stamps[slot], userActionAvro)) {
+            suppressed.increment();
+            return true;
+        }
+        return false;
+    }
+
+    // Запоминает доставленное действие; подтверждения могут прийти не по порядку, поэтому запись, уже
+    // покрывающая действие, не заменяется
+    public synchronized void remember(UserActionAvro userActionAvro) {
+        if (!enabled) return;
+        long fingerprint = fingerprint(userActionAvro.getUserId(), userActionAvro.getEventId());
+        int slot = (int) fingerprint & mask;
+        long timestamp = userActionAvro.getTimestamp().toEpochMilli();
+        int rank = userActionAvro.getActionType().ordinal();
+        if (fingerprints[slot] == fingerprint && rank <= (int) (stamps[slot] & 3) && timestamp <= stamps[slot] >> 2) {
+            return;
+        }
+        fingerprints[slot] = fingerprint;
+        stamps[slot] = timestamp << 2 | rank;
+    }
+
+    private boolean covers(long stamp, UserActionAvro userActionAvro) {
+        return userActionAvro.getActionType().ordinal() <= (int) (stamp & 3)
+                && userActionAvro.getTimestamp().toEpochMilli() < (stamp >> 2) + ttlMillis;
+    }
+
+    private double suppressionRate() {
+        double total = checked.count();
+        return total == 0 ? 0 : suppressed.count() / total;
+    }
+
+    // Перемешивание murmur3; ноль зарезервирован за пустой ячейкой
+    private static long fingerprint(long userId, long eventId) {
+        long h = userId * 0x9E3779B97F4A7C15L ^ eventId;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,216 @@
+package ru.practicum.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CollectorProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Асинхронная передача действий производителю Kafka. Потоки gRPC только кладут действия в ограниченную
+// кольцевую очередь и сразу освобождаются; отправляет один поток, поэтому заполненный буфер производителя
+// при медленном брокере задерживает только его. Когда очередь заполнена, приём отклоняется сразу.
+// Future каждого действия завершается подтверждением брокера или ошибкой отправки. При включённом локальном
+// журнале (UserActionSpool) неудачная отправка переключает приём на журнал: такие действия подтверждаются
+// после сброса на диск, а сам поток отправки не ждёт брокера
+@Slf4j
+@Component
+public class UserActionPipeline {
+
+    private static final int DRAIN_LIMIT = 1_000;
+    private static final long FAILED_POLL_MILLIS = 50;
+
+    private final KafkaTemplate<Long, SpecificRecordBase> kafkaTemplate;
+    private final UserActionBatcher userActionBatcher;
+    private final UserActionDeduplicator userActionDeduplicator;
+    private final UserActionSpool userActionSpool;
+    private final CollectorProperties.Kafka properties;
+    private final BlockingQueue<Pending> queue;
+    // Действия, отправка которых не удалась; поток отправки переносит их в журнал
+    private final Queue<Pending> failed = new ConcurrentLinkedQueue<>();
+    private final Timer sendLatency;
+    private final Counter rejected;
+    private final Thread sender;
+    private volatile boolean running = true;
+
+    public UserActionPipeline(KafkaTemplate<Long, SpecificRecordBase> kafkaTemplate, UserActionBatcher userActionBatcher,
+                              UserActionDeduplicator userActionDeduplicator, UserActionSpool userActionSpool,
+                              CollectorProperties properties, MeterRegistry meterRegistry) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.userActionBatcher = userActionBatcher;
+        this.userActionDeduplicator = userActionDeduplicator;
+        this.userActionSpool = userActionSpool;
+        this.properties = properties.getKafka();
+        this.queue = new ArrayBlockingQueue<>(properties.getPipeline().getQueueCapacity());
+        Gauge.builder("collector.pipeline.queue.depth", queue, BlockingQueue::size)
+                .description("Действия в очереди на отправку")
+                .register(meterRegistry);
+        this.sendLatency = Timer.builder("collector.pipeline.send.latency")
+                .description("От приёма действия до подтверждения брокером или записи в локальный журнал")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.rejected = Counter.builder("collector.pipeline.rejected")
+                .description("Действия, отклонённые из-за заполненной очереди")
+                .register(meterRegistry);
+        this.sender = new Thread(this::run, "collector-pipeline-sender");
+        this.sender.start();
+    }
+
+    public synchronized CompletableFuture<Void> submit(UserActionAvro userActionAvro) {
+        Pending pending = new Pending(userActionAvro, new CompletableFuture<>(), System.nanoTime());
+        if (!queue.offer(pending)) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Очередь действий заполнена"));
+        }
+        return pending.future();
+    }
+
+    // Пачка принимается целиком или отклоняется целиком, чтобы повтор клиента не дублировал её часть
+    public synchronized CompletableFuture<Void> submitAll(List<UserActionAvro> userActionAvros) {
+        if (queue.remainingCapacity() < userActionAvros.size()) {
+            rejected.increment(userActionAvros.size());
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Очередь действий заполнена"));
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[userActionAvros.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = submit(userActionAvros.get(i));
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    // Без журнала поток ждёт только новые действия; с журналом просыпается и для переноса неудачных в журнал
+    private void run() {
+        List<Pending> drained = new ArrayList<>(DRAIN_LIMIT);
+        List<Pending> toSpool = new ArrayList<>();
+        while (running) {
+            try {
+                Pending first = userActionSpool.isEnabled()
+                        ? queue.poll(FAILED_POLL_MILLIS, TimeUnit.MILLISECONDS)
+                        : queue.take();
+                if (first != null) {
+                    drained.add(first);
+                    queue.drainTo(drained, DRAIN_LIMIT - 1);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            process(drained, toSpool);
+            drained.clear();
+            toSpool.clear();
+        }
+    }
+
+    // Неудачные отправки пишутся в журнал раньше следующих за ними действий; отправка, отклонённая сразу,
+    // сохраняет своё место в порядке
+    private void process(List<Pending> drained, List<Pending> toSpool) {
+        for (Pending pending : drained) {
+            takeFailed(toSpool);
+            if (userActionDeduplicator.isRedundant(pending.userAction())) {
+                // Отсеянное повторное действие подтверждается сразу: его отправка ничего не изменила бы
+                pending.future().complete(null);
+            } else if (userActionSpool.isActive()) {
+                toSpool.add(pending);
+            } else {
+                send(pending);
+            }
+        }
+        takeFailed(toSpool);
+        if (!toSpool.isEmpty()) spool(toSpool);
+    }
+
+    private void takeFailed(List<Pending> toSpool) {
+        Pending retry;
+        while ((retry = failed.poll()) != null) {
+            toSpool.add(retry);
+        }
+    }
+
+    private void send(Pending pending) {
+        CompletableFuture<?> sent;
+        try {
+            sent = properties.getBatch().isEnabled()
+                    ? userActionBatcher.add(pending.userAction())
+                    : kafkaTemplate.send(properties.getUserActionTopic(), properties.getKey().of(pending.userAction()),
+                    pending.userAction());
+        } catch (Exception e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        sent.whenComplete((result, e) -> {
+            if (e != null && userActionSpool.isEnabled()) {
+                userActionSpool.activate();
+                failed.add(pending);
+                return;
+            }
+            sendLatency.record(System.nanoTime() - pending.acceptedNanos(), TimeUnit.NANOSECONDS);
+            if (e == null) {
+                userActionDeduplicator.remember(pending.userAction());
+                pending.future().complete(null);
+            } else {
+                log.warn("Не удалось отправить действие {}: {}", pending.userAction(), e.getMessage());
+                pending.future().completeExceptionally(e);
+            }
+        });
+    }
+
+    // Одна запись в журнал с одним сбросом на диск на все действия; ошибка журнала завершает их future
+    private void spool(List<Pending> pendings) {
+        List<UserActionAvro> userActions = new ArrayList<>(pendings.size());
+        for (Pending pending : pendings) {
+            userActions.add(pending.userAction());
+        }
+        try {
+            userActionSpool.append(userActions);
+        } catch (Exception e) {
+            log.error("Не удалось записать {} действий в локальный журнал: {}", pendings.size(), e.getMessage());
+            pendings.forEach(pending -> pending.future().completeExceptionally(e));
+            return;
+        }
+        long now = System.nanoTime();
+        for (Pending pending : pendings) {
+            sendLatency.record(now - pending.acceptedNanos(), TimeUnit.NANOSECONDS);
+            userActionDeduplicator.remember(pending.userAction());
+            pending.future().complete(null);
+        }
+    }
+
+    // Поток отправки останавливается, оставшиеся в очереди действия отправляются до закрытия производителя.
+    // С журналом производитель досылает отправленное, а неудачное уходит в журнал до следующего запуска
+    @PreDestroy
+    public void close() throws InterruptedException {
+        running = false;
+        sender.interrupt();
+        sender.join();
+        List<Pending> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        List<Pending> toSpool = new ArrayList<>();
+        process(remaining, toSpool);
+        if (userActionSpool.isEnabled()) {
+            try {
+                kafkaTemplate.flush();
+            } catch (Exception e) {
+                log.warn("Не удалось дослать действия при остановке: {}", e.getMessage());
+            }
+            toSpool.clear();
+            process(List.of(), toSpool);
+        }
+        log.info("Очередь действий остановлена, при остановке обработано {} действий", remaining.size());
+    }
+
+    private record Pending(UserActionAvro userAction, CompletableFuture<Void> future, long acceptedNanos) {
+    }
+}
@@ -1,17 +1,17 @@
 package ru.practicum.service;
 
-import com.google.protobuf.TextFormat;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.avro.specific.SpecificRecordBase;
-import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.stereotype.Service;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
 import ru.practicum.grpc.user.action.UserActionProto;
 import ru.practicum.mapper.UserActionMapper;
-import ru.practicum.properties.CollectorProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @Service
@@ -19,13 +19,22 @@ import ru.practicum.properties.CollectorProperties;
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class UserActionService {
 
-    KafkaTemplate<Void, SpecificRecordBase> kafkaTemplate;
-    CollectorProperties properties;
+    UserActionPipeline userActionPipeline;
 
-    public void handleUserAction(UserActionProto userActionProto) {
-        log.info("Получено Proto: {}", TextFormat.printer().emittingSingleLine(true).printToString(userActionProto));
+    // Future завершается, когда брокер подтвердил действие; при заполненной очереди - сразу с RejectedExecutionException
+    public CompletableFuture<Void> handleUserAction(UserActionProto userActionProto) {
         UserActionAvro userActionAvro = UserActionMapper.fromProtoToAvro(userActionProto);
-        kafkaTemplate.send(properties.getKafka().getUserActionTopic(), userActionAvro);
-        log.info("Отправлено Avro: {}", userActionAvro);
+        log.trace("Принято действие: {}", userActionAvro);
+        return userActionPipeline.submit(userActionAvro);
+    }
+
+    // Пачка действий принимается целиком; future завершается, когда брокер подтвердил все действия пачки
+    public CompletableFuture<Void> handleUserActions(List<UserActionProto> userActionProtos) {
+        List<UserActionAvro> userActionAvros = new ArrayList<>(userActionProtos.size());
+        for (UserActionProto userActionProto : userActionProtos) {
+            userActionAvros.add(UserActionMapper.fromProtoToAvro(userActionProto));
+        }
+        log.trace("Принята пачка из {} действий", userActionAvros.size());
+        return userActionPipeline.submitAll(userActionAvros);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,206 @@
+package ru.practicum.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+import ru.practicum.deserializer.UserActionAvroDeserializer;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CollectorProperties;
+import ru.practicum.serializer.GeneralAvroSerializer;
+import ru.practicum.spool.SegmentedSpool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Локальный журнал действий на время недоступности Kafka. После первой неудачной отправки UserActionPipeline
+// пишет действия сюда и подтверждает их клиенту после сброса на диск, не дожидаясь брокера. Поток повтора
+// читает журнал по порядку и отправляет пачками; пачка подтверждается в журнале только после подтверждения
+// брокером, поэтому при падении процесса действия могут быть отправлены повторно, но не теряются
+// (агрегатор хранит максимальный вес пары, повтор его не меняет). Когда журнал опустел после успешного
+// повтора, действия снова отправляются напрямую
+@Slf4j
+@Component
+public class UserActionSpool {
+
+    private final KafkaTemplate<Long, SpecificRecordBase> kafkaTemplate;
+    private final UserActionBatcher userActionBatcher;
+    private final CollectorProperties.Kafka kafkaProperties;
+    private final CollectorProperties.Spool properties;
+    private final GeneralAvroSerializer serializer = new GeneralAvroSerializer();
+    private final UserActionAvroDeserializer deserializer = new UserActionAvroDeserializer();
+    private final SegmentedSpool spool;
+    private final Counter spooled;
+    private final Counter replayed;
+    private final Counter corrupted;
+    private final Thread replayer;
+    private volatile boolean running = true;
+
+    // Действия идут в журнал, пока он не опустеет после успешного повтора
+    private volatile boolean active;
+    private boolean replayedSinceActivation;
+
+    public UserActionSpool(KafkaTemplate<Long, SpecificRecordBase> kafkaTemplate, UserActionBatcher userActionBatcher,
+                           CollectorProperties properties, MeterRegistry meterRegistry) throws IOException {
+        this.kafkaTemplate = kafkaTemplate;
+        this.userActionBatcher = userActionBatcher;
+        this.kafkaProperties = properties.getKafka();
+        this.properties = properties.getSpool();
+        this.spooled = Counter.builder("collector.spool.appended")
+                .description("Действия, записанные в локальный журнал")
+                .register(meterRegistry);
+        this.replayed = Counter.builder("collector.spool.replayed")
+                .description("Действия, повторно отправленные из локального журнала")
+                .register(meterRegistry);
+        this.corrupted = Counter.builder("collector.spool.corrupted")
+                .description("Байты локального журнала, пропущенные из-за повреждённых записей")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        if (!this.properties.isEnabled()) {
+            this.spool = null;
+            this.replayer = null;
+            return;
+        }
+        // Относительный путь зависел бы от рабочего каталога процесса, и после перезапуска журнал мог бы не найтись
+        if (this.properties.getDirectory() == null || !Path.of(this.properties.getDirectory()).isAbsolute()) {
+            throw new IllegalStateException("Для локального журнала нужен абсолютный путь collector.spool.directory");
+        }
+        this.spool = new SegmentedSpool(Path.of(this.properties.getDirectory()), this.properties.getSegmentSize().toBytes());
+        Gauge.builder("collector.spool.backlog.bytes", spool, SegmentedSpool::backlogBytes)
+                .description("Неотправленный объём локального журнала")
+                .register(meterRegistry);
+        if (!spool.isEmpty()) {
+            log.info("В локальном журнале остались действия с прошлого запуска: {} байт", spool.backlogBytes());
+            active = true;
+        }
+        this.replayer = new Thread(this::replay, "collector-spool-replayer");
+        this.replayer.start();
+    }
+
+    public boolean isEnabled() {
+        return spool != null;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    // Переключает приём на журнал; вызывается при неудачной отправке, в том числе из потоков производителя
+    public synchronized void activate() {
+        if (!active) log.warn("Kafka не принимает действия, приём переключён на локальный журнал");
+        active = true;
+        replayedSinceActivation = false;
+        notifyAll();
+    }
+
+    // Дописывает действия одним сбросом на диск
+    public synchronized void append(List<UserActionAvro> userActions) {
+        List<byte[]> records = new ArrayList<>(userActions.size());
+        for (UserActionAvro userAction : userActions) {
+            records.add(serializer.serialize(kafkaProperties.getUserActionTopic(), userAction));
+        }
+        try {
+            spool.append(records);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        spooled.increment(userActions.size());
+        active = true;
+        notifyAll();
+    }
+
+    private void replay() {
+        long retryMillis = properties.getRetryInterval().toMillis();
+        while (running) {
+            try {
+                SegmentedSpool.Batch batch = spool.read(properties.getReplayBatch());
+                if (batch.isEmpty()) {
+                    awaitAppend(retryMillis);
+                    continue;
+                }
+                if (batch.skippedRecords() > 0) {
+                    log.error("Пропущены повреждённые записи локального журнала перед позицией {}: {} записей, {} байт, "
+                            + "копия сегмента сохранена с расширением .corrupt",
+                            batch.nextPosition(), batch.skippedRecords(), batch.skippedBytes());
+                    corrupted.increment(batch.skippedBytes());
+                } else if (batch.skippedBytes() > 0) {
+                    log.error("Повреждена длина записи локального журнала на позиции {}: пропущено {} байт до конца "
+                            + "сегмента, копия сегмента сохранена с расширением .corrupt",
+                            batch.nextPosition() - batch.skippedBytes(), batch.skippedBytes());
+                    corrupted.increment(batch.skippedBytes());
+                }
+                List<UserActionAvro> userActions = new ArrayList<>(batch.records().size());
+                for (byte[] record : batch.records()) {
+                    userActions.add(deserializer.deserialize(kafkaProperties.getUserActionTopic(), record));
+                }
+                send(userActions).get(properties.getReplayTimeout().toMillis(), TimeUnit.MILLISECONDS);
+                spool.acknowledge(batch);
+                if (userActions.isEmpty()) continue;
+                replayed.increment(userActions.size());
+                synchronized (this) {
+                    replayedSinceActivation = true;
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                log.warn("Повтор действий из локального журнала не удался, следующая попытка через {} мс: {}",
+                        retryMillis, e.getMessage());
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Журнал опустел: приём возвращается к прямой отправке, если после переключения хотя бы одна пачка
+    // дошла до брокера, иначе поток ждёт новых записей
+    private synchronized void awaitAppend(long timeoutMillis) throws InterruptedException {
+        if (!spool.isEmpty()) return;
+        if (active && replayedSinceActivation) {
+            active = false;
+            log.info("Локальный журнал отправлен, действия снова отправляются напрямую");
+        }
+        wait(timeoutMillis);
+    }
+
+    // Действия уходят в те же партиции, что и при прямой отправке
+    private CompletableFuture<?> send(List<UserActionAvro> userActions) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        if (kafkaProperties.getBatch().isEnabled()) {
+            for (ProducerRecord<Long, SpecificRecordBase> envelope : userActionBatcher.envelopes(userActions)) {
+                futures.add(kafkaTemplate.send(envelope));
+            }
+        } else {
+            for (UserActionAvro userAction : userActions) {
+                futures.add(kafkaTemplate.send(kafkaProperties.getUserActionTopic(),
+                        kafkaProperties.getKey().of(userAction), userAction));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new));
+    }
+
+    // Неотправленные действия остаются в журнале до следующего запуска
+    @PreDestroy
+    public void close() throws InterruptedException, IOException {
+        if (spool == null) return;
+        running = false;
+        replayer.interrupt();
+        replayer.join();
+        spool.close();
+        if (!spool.isEmpty()) {
+            log.info("В локальном журнале остаётся {} байт действий до следующего запуска", spool.backlogBytes());
+        }
+    }
+}
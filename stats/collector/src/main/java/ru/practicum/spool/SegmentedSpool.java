@@ -0,0 +1,293 @@
+package ru.practicum.spool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Журнал записей в локальных файлах: запись только в конец активного сегмента, один fsync на пачку записей,
+// чтение через отображение сегментов в память. Позиции сквозные по всем сегментам, файл сегмента назван
+// позицией его начала. Прочитанная и подтверждённая позиция хранится в файле checkpoint, полностью
+// подтверждённые сегменты удаляются. Формат записи: длина (int), CRC32 данных (int), данные.
+// Недописанный при сбое хвост активного сегмента (всё после последней целой записи) отбрасывается при открытии.
+// Запись с неверной CRC, но допустимой длиной пропускается при чтении, а следующие за ней записи сохраняются;
+// если повреждена сама длина, границы дальнейших записей неизвестны и пропускается остаток сегмента.
+// В обоих случаях копия сегмента сохраняется рядом с расширением .corrupt, чтобы повтор не останавливался
+// на повреждении навсегда, а данные можно было разобрать вручную.
+// Пишет один поток, читает и подтверждает другой
+@Slf4j
+public class SegmentedSpool implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private FileChannel active;
+    private long activeBase;
+    private long writePosition;
+    private long readPosition;
+
+    // Отображение сегмента, из которого идёт чтение; используется только читающим потоком
+    private MappedByteBuffer mapped;
+    private long mappedBase = -1;
+
+    public SegmentedSpool(Path directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .forEach(file -> segments.put(baseOf(file), file));
+        }
+        readPosition = readCheckpoint();
+        deleteConsumedSegments();
+        if (segments.isEmpty()) {
+            openSegment(readPosition);
+        } else {
+            Map.Entry<Long, Path> last = segments.lastEntry();
+            activeBase = last.getKey();
+            active = FileChannel.open(last.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Recovery recovery = recover(active);
+            if (recovery.damagedRecords() > 0) {
+                quarantine(last.getValue());
+                log.error("В сегменте {} локального журнала повреждено записей: {}, они будут пропущены при повторе, "
+                        + "копия сегмента сохранена с расширением {}", last.getValue(), recovery.damagedRecords(), CORRUPT_SUFFIX);
+            }
+            long valid = recovery.validLength();
+            if (valid < active.size()) {
+                log.warn("Отброшен недописанный хвост сегмента {} локального журнала: {} байт",
+                        last.getValue(), active.size() - valid);
+                active.truncate(valid);
+                active.force(true);
+            }
+            active.position(valid);
+            writePosition = activeBase + valid;
+            readPosition = Math.max(readPosition, segments.firstKey());
+            readPosition = Math.min(readPosition, writePosition);
+        }
+    }
+
+    // Дописывает записи и сбрасывает их на диск; после возврата записи переживают падение процесса
+    public synchronized void append(List<byte[]> records) throws IOException {
+        int bytes = 0;
+        for (byte[] record : records) {
+            bytes += HEADER_BYTES + record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        CRC32 crc = new CRC32();
+        for (byte[] record : records) {
+            long length = HEADER_BYTES + record.length;
+            if (writePosition - activeBase + buffer.position() + length > segmentSize
+                    && writePosition + buffer.position() > activeBase) {
+                write(buffer);
+                roll();
+            }
+            crc.reset();
+            crc.update(record);
+            buffer.putInt(record.length).putInt((int) crc.getValue()).put(record);
+        }
+        write(buffer);
+        active.force(false);
+    }
+
+    // Записи с позиции чтения, не более max и в пределах одного сегмента; позиция сдвигается только acknowledge.
+    // Записи с неверной CRC пропускаются и учитываются в skippedRecords. Если повреждена длина первой читаемой
+    // записи, возвращается пачка без записей, пропускающая остаток сегмента
+    public Batch read(int max) throws IOException {
+        long position;
+        long base;
+        long end;
+        Path file;
+        synchronized (this) {
+            position = readPosition;
+            Map.Entry<Long, Path> segment = segments.floorEntry(position);
+            Long next = segments.higherKey(segment.getKey());
+            while (next != null && position == next) {
+                segment = segments.higherEntry(segment.getKey());
+                next = segments.higherKey(segment.getKey());
+            }
+            base = segment.getKey();
+            end = next != null ? next : writePosition;
+            file = segment.getValue();
+        }
+        if (position == end) return new Batch(List.of(), position, 0, 0);
+        if (mapped == null || mappedBase != base || mapped.capacity() < end - base) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end - base);
+                mappedBase = base;
+            }
+        }
+        List<byte[]> records = new ArrayList<>(Math.min(max, 1_024));
+        CRC32 crc = new CRC32();
+        int offset = (int) (position - base);
+        long limit = end - base;
+        long skippedBytes = 0;
+        int skippedRecords = 0;
+        boolean brokenLength = false;
+        while (records.size() < max && offset < limit) {
+            int length = offset + HEADER_BYTES <= limit ? mapped.getInt(offset) : -1;
+            brokenLength = length < 0 || offset + HEADER_BYTES + (long) length > limit;
+            if (brokenLength) break;
+            byte[] record = new byte[length];
+            mapped.get(offset + HEADER_BYTES, record);
+            crc.reset();
+            crc.update(record);
+            boolean intact = (int) crc.getValue() == mapped.getInt(offset + 4);
+            offset += HEADER_BYTES + length;
+            if (intact) {
+                records.add(record);
+            } else {
+                skippedBytes += HEADER_BYTES + length;
+                skippedRecords++;
+            }
+        }
+        if (skippedRecords > 0) quarantine(file);
+        // Записи до повреждённой длины отдаются как обычно, остаток сегмента пропускается следующим чтением
+        if (!brokenLength || !records.isEmpty() || skippedRecords > 0) {
+            return new Batch(records, base + offset, skippedBytes, skippedRecords);
+        }
+        quarantine(file);
+        return new Batch(List.of(), end, limit - offset, 0);
+    }
+
+    // Подтверждает прочитанную пачку: позиция сохраняется на диск, пройденные сегменты удаляются
+    public void acknowledge(Batch batch) throws IOException {
+        Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, batch.nextPosition()));
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            readPosition = batch.nextPosition();
+            deleteConsumedSegments();
+            if (!segments.containsKey(mappedBase)) {
+                mapped = null;
+                mappedBase = -1;
+            }
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return readPosition >= writePosition;
+    }
+
+    // Неподтверждённый объём в байтах вместе с заголовками записей
+    public synchronized long backlogBytes() {
+        return writePosition - readPosition;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        active.force(true);
+        active.close();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            writePosition += active.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void roll() throws IOException {
+        active.force(true);
+        active.close();
+        openSegment(writePosition);
+    }
+
+    private void openSegment(long base) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+        active = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeBase = base;
+        writePosition = base;
+        segments.put(base, file);
+    }
+
+    // Удаляет сегменты, целиком лежащие до позиции чтения; активный сегмент не удаляется
+    private void deleteConsumedSegments() throws IOException {
+        while (segments.size() > 1) {
+            Map.Entry<Long, Path> first = segments.firstEntry();
+            if (segments.higherKey(first.getKey()) > readPosition) break;
+            Files.deleteIfExists(first.getValue());
+            segments.remove(first.getKey());
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT);
+        if (!Files.exists(checkpoint)) return 0;
+        return ByteBuffer.wrap(Files.readAllBytes(checkpoint)).getLong();
+    }
+
+    private static void quarantine(Path file) throws IOException {
+        Files.copy(file, file.resolveSibling(file.getFileName() + CORRUPT_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Длина сегмента до конца последней целой записи и число повреждённых записей перед ней.
+    // Повреждённые записи после последней целой - недописанный хвост, они в число повреждённых не входят
+    private static Recovery recover(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == 0) return new Recovery(0, 0);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 crc = new CRC32();
+        long valid = 0;
+        int damaged = 0;
+        int pending = 0;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= size) {
+            int length = buffer.getInt(offset);
+            if (length < 0 || offset + HEADER_BYTES + (long) length > size) break;
+            byte[] record = new byte[length];
+            buffer.get(offset + HEADER_BYTES, record);
+            crc.reset();
+            crc.update(record);
+            boolean intact = (int) crc.getValue() == buffer.getInt(offset + 4);
+            offset += HEADER_BYTES + length;
+            if (intact) {
+                damaged += pending;
+                pending = 0;
+                valid = offset;
+            } else {
+                pending++;
+            }
+        }
+        return new Recovery(valid, damaged);
+    }
+
+    private static long baseOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // skippedBytes - байты, пропущенные из-за повреждений; skippedRecords - пропущенные записи с неверной CRC,
+    // 0 при ненулевом skippedBytes означает пропуск остатка сегмента с неизвестным числом записей
+    public record Batch(List<byte[]> records, long nextPosition, long skippedBytes, int skippedRecords) {
+        public boolean isEmpty() {
+            return records.isEmpty() && skippedBytes == 0;
+        }
+    }
+
+    private record Recovery(long validLength, int damagedRecords) {
+    }
+}
@@ -0,0 +1,80 @@
+package ru.practicum.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.SendResult;
+import ru.practicum.ewm.stats.avro.ActionTypeAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CollectorProperties;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+// Очередь отправки с отсевом повторов без локального журнала: Kafka заменена перехватом отправок
+class UserActionPipelineTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final AtomicBoolean brokerUp = new AtomicBoolean();
+    private final List<UserActionAvro> delivered = Collections.synchronizedList(new ArrayList<>());
+
+    // Повтор клиента после неудачной отправки не считается повтором действия и доходит до брокера,
+    // а повтор уже доставленного действия отсеивается
+    @Test
+    void retryAfterFailedSend_ShouldReachBrokerDespiteDedup() throws Exception {
+        UserActionPipeline pipeline = newPipeline();
+        UserActionAvro action = UserActionAvro.newBuilder()
+                .setUserId(1)
+                .setEventId(2)
+                .setActionType(ActionTypeAvro.LIKE)
+                .setTimestamp(Instant.ofEpochMilli(1_700_000_000_000L))
+                .build();
+
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> pipeline.submit(action).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertInstanceOf(TimeoutException.class, failure.getCause());
+        assertTrue(delivered.isEmpty());
+
+        brokerUp.set(true);
+        pipeline.submit(action).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(List.of(action), delivered);
+
+        pipeline.submit(action).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(List.of(action), delivered);
+        pipeline.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private UserActionPipeline newPipeline() throws Exception {
+        CollectorProperties properties = new CollectorProperties();
+        properties.getDedup().setEnabled(true);
+        properties.getDedup().setCapacity(1_024);
+        ProducerFactory<Long, SpecificRecordBase> producerFactory = mock(ProducerFactory.class);
+        KafkaTemplate<Long, SpecificRecordBase> kafkaTemplate = new KafkaTemplate<>(producerFactory) {
+            @Override
+            public CompletableFuture<SendResult<Long, SpecificRecordBase>> send(String topic, Long key,
+                                                                                SpecificRecordBase data) {
+                if (!brokerUp.get()) return CompletableFuture.failedFuture(new TimeoutException("Брокер недоступен"));
+                delivered.add((UserActionAvro) data);
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        UserActionBatcher batcher = new UserActionBatcher(kafkaTemplate, properties);
+        return new UserActionPipeline(kafkaTemplate, batcher, new UserActionDeduplicator(properties, meterRegistry),
+                new UserActionSpool(kafkaTemplate, batcher, properties, meterRegistry), properties, meterRegistry);
+    }
+}
@@ -0,0 +1,228 @@
+package ru.practicum.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.unit.DataSize;
+import ru.practicum.ewm.stats.avro.ActionTypeAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.properties.CollectorProperties;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+// Недоступность брокера на коллекторе в памяти: Kafka заменена перехватом отправок, который отказывает,
+// пока брокер "выключен". Журнал пишется во временный каталог с маленькими сегментами
+class UserActionSpoolTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final AtomicBoolean brokerUp = new AtomicBoolean();
+    private final List<UserActionAvro> delivered = Collections.synchronizedList(new ArrayList<>());
+
+    @TempDir
+    Path directory;
+
+    // Действия, принятые при недоступном брокере, подтверждаются через журнал, переживают перезапуск
+    // и после восстановления брокера доходят до него по порядку; затем отправка снова идёт напрямую
+    @Test
+    void brokerOutage_ShouldSpoolActionsAndReplayThemInOrderAfterRecovery() throws Exception {
+        List<UserActionAvro> beforeRestart = generateActions(0, 300, 1);
+        List<UserActionAvro> afterRestart = generateActions(300, 200, 2);
+
+        Collector collector = new Collector();
+        collector.pipeline.submitAll(beforeRestart).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(collector.spool.isActive());
+        assertTrue(delivered.isEmpty());
+        collector.close();
+
+        collector = new Collector();
+        assertTrue(collector.spool.isActive(), "Журнал не пережил перезапуск");
+        for (UserActionAvro action : afterRestart) {
+            collector.pipeline.submit(action).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(delivered.isEmpty());
+        assertTrue(segmentCount() > 1);
+
+        brokerUp.set(true);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (collector.spool.isActive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(collector.spool.isActive(), "Журнал не опустел после восстановления брокера");
+        List<UserActionAvro> expected = new ArrayList<>(beforeRestart);
+        expected.addAll(afterRestart);
+        assertEquals(expected, delivered);
+        assertEquals(1, segmentCount());
+
+        UserActionAvro direct = generateActions(500, 1, 3).get(0);
+        collector.pipeline.submit(direct).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(direct, delivered.get(delivered.size() - 1));
+        collector.close();
+
+        collector = new Collector();
+        assertFalse(collector.spool.isActive(), "Повторённые действия остались в журнале");
+        collector.close();
+    }
+
+    // Запись с неверной CRC в начале журнала пропускается одна, копия сегмента остаётся на диске,
+    // а остальные действия доходят до брокера и журнал освобождается
+    @Test
+    void corruptedSegment_ShouldBeSkippedAndQuarantined() throws Exception {
+        List<UserActionAvro> actions = generateActions(0, 300, 4);
+        Collector collector = new Collector();
+        collector.pipeline.submitAll(actions).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        collector.close();
+        Path first;
+        try (Stream<Path> files = Files.list(directory)) {
+            first = files.filter(file -> file.toString().endsWith(".spool")).sorted().findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer payload = ByteBuffer.allocate(1);
+            channel.read(payload, 8);
+            channel.write(payload.flip().put(0, (byte) ~payload.get(0)), 8);
+        }
+
+        collector = new Collector();
+        brokerUp.set(true);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (collector.spool.isActive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(collector.spool.isActive(), "Повтор остановился на повреждённой записи");
+        assertEquals(actions.subList(1, actions.size()), delivered);
+        assertTrue(Files.exists(first.resolveSibling(first.getFileName() + ".corrupt")));
+        assertTrue(collector.meterRegistry.get("collector.spool.corrupted").counter().count() > 0);
+        collector.close();
+    }
+
+    // При открытии недописанный хвост активного сегмента отбрасывается, а повреждённая запись в его середине
+    // не обрезает сегмент: теряется только она, записи после неё доходят до брокера
+    @Test
+    void reopenAfterCrash_ShouldTruncateOnlyTornTail() throws Exception {
+        List<UserActionAvro> actions = generateActions(0, 300, 5);
+        Collector collector = new Collector();
+        collector.pipeline.submitAll(actions).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        collector.close();
+        Path last;
+        try (Stream<Path> files = Files.list(directory)) {
+            last = files.filter(file -> file.toString().endsWith(".spool")).sorted(Comparator.reverseOrder())
+                    .findFirst().orElseThrow();
+        }
+        long intactSize = Files.size(last);
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            long second = 8 + header.getInt(0);
+            ByteBuffer payload = ByteBuffer.allocate(1);
+            channel.read(payload, second + 8);
+            channel.write(payload.flip().put(0, (byte) ~payload.get(0)), second + 8);
+            // Начало записи, прерванной сбоем: заголовок обещает больше данных, чем успело попасть на диск
+            channel.write(ByteBuffer.allocate(11).putInt(0, 100), intactSize);
+        }
+
+        collector = new Collector();
+        assertEquals(intactSize, Files.size(last));
+        assertTrue(Files.exists(last.resolveSibling(last.getFileName() + ".corrupt")));
+        brokerUp.set(true);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (collector.spool.isActive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(collector.spool.isActive(), "Повтор остановился на повреждённой записи");
+        assertEquals(actions.size() - 1, delivered.size());
+        int lost = 0;
+        while (delivered.get(lost).equals(actions.get(lost))) {
+            lost++;
+        }
+        assertTrue(lost < delivered.size() - 1, "Потеряны записи после повреждённой");
+        List<UserActionAvro> expected = new ArrayList<>(actions);
+        expected.remove(lost);
+        assertEquals(expected, delivered);
+        collector.close();
+    }
+
+    private long segmentCount() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".spool")).count();
+        }
+    }
+
+    private static List<UserActionAvro> generateActions(int from, int count, long seed) {
+        Random random = new Random(seed);
+        ActionTypeAvro[] types = ActionTypeAvro.values();
+        List<UserActionAvro> actions = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            actions.add(UserActionAvro.newBuilder()
+                    .setUserId(1 + random.nextInt(50))
+                    .setEventId(1 + random.nextInt(20))
+                    .setActionType(types[random.nextInt(types.length)])
+                    .setTimestamp(Instant.ofEpochMilli(1_700_000_000_000L + i))
+                    .build());
+        }
+        return actions;
+    }
+
+    // Коллектор без gRPC: журнал и очередь отправки поверх перехвата Kafka
+    private class Collector {
+
+        final UserActionSpool spool;
+        final UserActionPipeline pipeline;
+        final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        @SuppressWarnings("unchecked")
+        Collector() throws Exception {
+            CollectorProperties properties = new CollectorProperties();
+            properties.getSpool().setEnabled(true);
+            properties.getSpool().setDirectory(directory.toString());
+            properties.getSpool().setSegmentSize(DataSize.ofKilobytes(4));
+            properties.getSpool().setReplayBatch(100);
+            properties.getSpool().setRetryInterval(Duration.ofMillis(20));
+            ProducerFactory<Long, SpecificRecordBase> producerFactory = mock(ProducerFactory.class);
+            KafkaTemplate<Long, SpecificRecordBase> kafkaTemplate = new KafkaTemplate<>(producerFactory) {
+                @Override
+                public CompletableFuture<SendResult<Long, SpecificRecordBase>> send(String topic, Long key,
+                                                                                    SpecificRecordBase data) {
+                    if (!brokerUp.get()) return CompletableFuture.failedFuture(new TimeoutException("Брокер недоступен"));
+                    delivered.add((UserActionAvro) data);
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                @Override
+                public void flush() {
+                }
+            };
+            UserActionBatcher batcher = new UserActionBatcher(kafkaTemplate, properties);
+            this.spool = new UserActionSpool(kafkaTemplate, batcher, properties, meterRegistry);
+            this.pipeline = new UserActionPipeline(kafkaTemplate, batcher, new UserActionDeduplicator(properties, meterRegistry),
+                    spool, properties, meterRegistry);
+        }
+
+        void close() throws Exception {
+            pipeline.close();
+            spool.close();
+        }
+    }
+}